@@ -0,0 +1,97 @@
+package com.expleague.ml.embedding.telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Emits a com.expleague.ml.embedding.TrainingEpoch event per epoch into a running Flight Recorder,
+// e.g. one started with -XX:StartFlightRecording, so that epochs line up with GC and allocation events.
+// Needs a JVM with jdk.jfr (8u262+ or 11+), nothing is recorded unless a recording is on.
+// Built only by the jfr profile, the core sources stay plain Java 8.
+public class JfrTrainingListener implements TrainingListener {
+
+    @Name("com.expleague.ml.embedding.TrainingEpoch")
+    @Label("Training Epoch")
+    @Category({"Embedding", "Training"})
+    @Description("Metrics of one epoch of embedding training")
+    static class EpochEvent extends Event {
+        @Label("Model")
+        String model;
+        @Label("Epoch")
+        int epoch;
+        @Label("Wall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long wallTime;
+        @Label("Non-zeroes")
+        long nonZeroes;
+        @Label("Non-zeroes per Second")
+        double nonZeroesPerSecond;
+        @Label("Loss")
+        double loss;
+        @Label("Shuffle Time")
+        @Description("Summed over threads")
+        @Timespan(Timespan.NANOSECONDS)
+        long shuffleTime;
+        @Label("Update Time")
+        @Description("Summed over threads")
+        @Timespan(Timespan.NANOSECONDS)
+        long updateTime;
+        @Label("Workers")
+        int workers;
+        @Label("Smallest Worker Share")
+        double minWorkerShare;
+        @Label("Largest Worker Share")
+        double maxWorkerShare;
+        @Label("Gradient Mean")
+        double gradientMean;
+        @Label("Gradient p50")
+        double gradientP50;
+        @Label("Gradient p90")
+        double gradientP90;
+        @Label("Gradient p99")
+        double gradientP99;
+        @Label("Gradient Max")
+        double gradientMax;
+        @Label("Heap Used")
+        @DataAmount
+        long heapUsed;
+        @Label("Heap Committed")
+        @DataAmount
+        long heapCommitted;
+    }
+
+    @Override
+    public void epochFinished(EpochMetrics metrics) {
+        final EpochEvent event = new EpochEvent();
+        if (!event.isEnabled())
+            return;
+        event.model = metrics.getModel();
+        event.epoch = metrics.getEpoch();
+        event.wallTime = metrics.getWallNanos();
+        event.nonZeroes = metrics.getNonZeroes();
+        event.nonZeroesPerSecond = metrics.getNonZeroesPerSecond();
+        event.loss = metrics.getLoss();
+        event.shuffleTime = metrics.getShuffleNanos();
+        event.updateTime = metrics.getUpdateNanos();
+        final double[] shares = metrics.getWorkerShares();
+        event.workers = shares.length;
+        event.minWorkerShare = shares.length == 0 ? 0 : shares[0];
+        event.maxWorkerShare = event.minWorkerShare;
+        for (double share : shares) {
+            event.minWorkerShare = Math.min(event.minWorkerShare, share);
+            event.maxWorkerShare = Math.max(event.maxWorkerShare, share);
+        }
+        event.gradientMean = metrics.getGradientMean();
+        event.gradientP50 = metrics.getGradientP50();
+        event.gradientP90 = metrics.getGradientP90();
+        event.gradientP99 = metrics.getGradientP99();
+        event.gradientMax = metrics.getGradientMax();
+        event.heapUsed = metrics.getHeapUsed();
+        event.heapCommitted = metrics.getHeapCommitted();
+        event.commit();
+    }
+}
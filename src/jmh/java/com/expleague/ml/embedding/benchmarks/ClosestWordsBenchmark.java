@@ -0,0 +1,73 @@
+package com.expleague.ml.embedding.benchmarks;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.Model;
+import com.expleague.ml.embedding.neighbours.ArrayVectorStore;
+import com.expleague.ml.embedding.neighbours.HnswIndex;
+import com.expleague.ml.embedding.text_utils.Vocabulary;
+import com.expleague.ml.embedding.text_utils.ZipfCorpus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Model.getClosestWords over random unit vectors, by the exact scan or through an HNSW index.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ClosestWordsBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int words;
+
+    @Param({"100", "300"})
+    int dim;
+
+    @Param({"EXACT", "HNSW"})
+    String index;
+
+    @Param({"10"})
+    int top;
+
+    private Model model;
+    private List<String> queries;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final FastRandom rng = new FastRandom(100500);
+        final double[] vectors = new double[words * dim];
+        for (int i = 0; i < words; i++) {
+            double norm = 0;
+            for (int k = 0; k < dim; k++) {
+                vectors[i * dim + k] = rng.nextGaussian();
+                norm += vectors[i * dim + k] * vectors[i * dim + k];
+            }
+            norm = Math.sqrt(norm);
+            for (int k = 0; k < dim; k++)
+                vectors[i * dim + k] /= norm;
+        }
+        final List<String> vocabulary = new ArrayList<>(words);
+        for (int i = 0; i < words; i++)
+            vocabulary.add(ZipfCorpus.word(i));
+        model = new Model(new ArrayVectorStore(vectors, dim), new Vocabulary(vocabulary));
+        if ("HNSW".equals(index))
+            model.buildHnswIndex(new HnswIndex.Parameters());
+        queries = new ArrayList<>(1000);
+        for (int q = 0; q < 1000; q++)
+            queries.add(vocabulary.get(rng.nextInt(words)));
+    }
+
+    @Benchmark
+    public List<String> closestWords(Cursor cursor) {
+        final String query = queries.get(cursor.next++ % queries.size());
+        return model.getClosestWords(query, top);
+    }
+}
@@ -0,0 +1,56 @@
+package com.expleague.ml.embedding.benchmarks;
+
+import com.expleague.ml.embedding.text_utils.CooccurencesBuilder;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import com.expleague.ml.embedding.text_utils.Vocabulary;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// CooccurencesBuilder.buildCsr over a corpus file with a ready vocabulary, the build Word2Vec runs. memoryLimit > 0
+// bounds the counting buffer and spills it to disk, 16 MB spills on the larger corpora.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CooccurencesBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    long tokens;
+
+    @Param({"5", "15"})
+    int window;
+
+    @Param({"1", "4"})
+    int threads;
+
+    @Param({"0", "16777216"})
+    long memoryLimit;
+
+    private Path corpus;
+    private Vocabulary vocabulary;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Corpora.zipf(tokens);
+        vocabulary = new Vocabulary(corpus.toString());
+    }
+
+    @Benchmark
+    public CsrCooccurences build() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(corpus)) {
+            return new CooccurencesBuilder()
+                .setVocabulary(vocabulary)
+                .setLeftWindow(window)
+                .setRightWindow(window)
+                .setThreads(threads)
+                .setMemoryLimit(memoryLimit)
+                .buildCsr(reader);
+        }
+    }
+}
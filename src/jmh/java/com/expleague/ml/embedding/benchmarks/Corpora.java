@@ -0,0 +1,30 @@
+package com.expleague.ml.embedding.benchmarks;
+
+import com.expleague.ml.embedding.text_utils.ZipfCorpus;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+// Zipf corpora of the benchmarks. A corpus is generated once per size into java.io.tmpdir and reused
+// by later forks and runs, generation is deterministic so results don't depend on the data/ directory.
+final class Corpora {
+    // distinct words that may occur, about 21000 of them pass the minimal count on a 1M tokens corpus
+    static final int VOCABULARY = 50000;
+
+    private Corpora() {
+    }
+
+    static Path zipf(long tokens) throws IOException {
+        final Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+        final Path path = dir.resolve("zipf-" + VOCABULARY + "-" + tokens + ".txt");
+        if (!Files.exists(path)) {
+            final Path temporary = Files.createTempFile(dir, "zipf", ".tmp");
+            new ZipfCorpus().setVocabularySize(VOCABULARY).write(temporary, tokens);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return path;
+    }
+}
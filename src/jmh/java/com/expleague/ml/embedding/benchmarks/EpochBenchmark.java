@@ -0,0 +1,81 @@
+package com.expleague.ml.embedding.benchmarks;
+
+import com.expleague.ml.embedding.ModelParameters;
+import com.expleague.ml.embedding.model_functions.AbstractModelFunction;
+import com.expleague.ml.embedding.model_functions.Kernels;
+import com.expleague.ml.embedding.model_functions.ModelChooser;
+import com.expleague.ml.embedding.model_functions.ParameterMx;
+import com.expleague.ml.embedding.model_functions.TrainingScheduler;
+import com.expleague.ml.embedding.text_utils.CorpusPipeline;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// One SGD epoch of GLOVE or DECOMP as trainModel runs it. Every invocation trains the next EPOCHS epochs
+// of the same model in one trainModel call, so the scheduler (index of non-zeroes, thread pool, checkpoints)
+// is built once per EPOCHS epochs rather than per measured epoch; later measurements see partly trained vectors.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class EpochBenchmark {
+    private static final int EPOCHS = 5;
+
+    @Param({"GLOVE", "DECOMP"})
+    String model;
+
+    @Param({"100000", "1000000"})
+    long tokens;
+
+    @Param({"50", "200"})
+    int dim;
+
+    @Param({"ENTRIES", "STRATIFIED"})
+    TrainingScheduler.Type scheduler;
+
+    @Param({"1", "4"})
+    int threads;
+
+    @Param({"DOUBLE"})
+    ParameterMx.Precision precision;
+
+    @Param({"UNROLLED"})
+    Kernels.Type kernels;
+
+    private AbstractModelFunction function;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final Path corpus = Corpora.zipf(tokens);
+        final CorpusPipeline pipeline = new CorpusPipeline().setThreads(threads);
+        try (BufferedReader reader = Files.newBufferedReader(corpus)) {
+            pipeline.run(reader);
+        }
+        final ModelParameters parameters = new ModelParameters.Builder(corpus.toString())
+            .setModelName(model)
+            .setGloveVecSize(dim)
+            .setSymSize(dim)
+            .setSkewSize(Math.max(1, dim / 5))
+            .setTrainingIters(0)
+            .setThreads(threads)
+            .setScheduler(scheduler)
+            .setPrecision(precision)
+            .setKernels(kernels)
+            .build();
+        function = ModelChooser.model(parameters, pipeline.getVocabulary(), pipeline.getCooccurences());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS)
+    public int epoch() {
+        function.setTrainingIters(function.getEpoch() + EPOCHS);
+        function.trainModel();
+        return function.getEpoch();
+    }
+}
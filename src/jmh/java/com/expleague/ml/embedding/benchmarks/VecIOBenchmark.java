@@ -0,0 +1,73 @@
+package com.expleague.ml.embedding.benchmarks;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.impl.mx.VecBasedMx;
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.text_utils.VecIO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Text vectors as in train_vectors.txt and eval_vectors.txt: a row per line, values separated by spaces.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VecIOBenchmark {
+    @Param({"10000", "100000"})
+    int rows;
+
+    @Param({"50", "300"})
+    int dim;
+
+    private Mx vectors;
+    private Path written;
+    private Path read;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final FastRandom rng = new FastRandom(100500);
+        vectors = new VecBasedMx(rows, dim);
+        for (int i = 0; i < rows; i++) {
+            for (int k = 0; k < dim; k++)
+                vectors.set(i, k, (rng.nextDouble() - 0.5) / dim);
+        }
+        written = Files.createTempFile("vecio-write", ".txt");
+        read = Files.createTempFile("vecio-read", ".txt");
+        write(read);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(written);
+        Files.deleteIfExists(read);
+    }
+
+    private void write(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path)) {
+            for (int i = 0; i < rows; i++) {
+                VecIO.writeVec(out, vectors.row(i));
+                out.append('\n');
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeMx() throws IOException {
+        write(written);
+    }
+
+    @Benchmark
+    public Mx readMx() throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(read)) {
+            return VecIO.readMx(in, rows);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.expleague.ml.embedding.benchmarks;
+
+import com.expleague.ml.embedding.text_utils.Tokenizer;
+import com.expleague.ml.embedding.text_utils.Vocabulary;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Reading, tokenizing and counting a corpus file into a Vocabulary.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VocabularyBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    long tokens;
+
+    @Param({"FAST", "BREAK_ITERATOR"})
+    Tokenizer.Type tokenizer;
+
+    private String corpus;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Corpora.zipf(tokens).toString();
+    }
+
+    @Benchmark
+    public Vocabulary build() {
+        return new Vocabulary(corpus, tokenizer, Vocabulary.MIN_COUNT, 0);
+    }
+}
@@ -5,11 +5,12 @@ import com.expleague.ml.embedding.quality_metrics.impl.ArithmeticMetric;
 import com.expleague.ml.embedding.quality_metrics.impl.CloserFurtherMetric;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Main {
 
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
     String input = "data/corpuses/text8";
     String res = "data/models/text8/shrinking/";
     String metricNames = "data/tests/text8/all_metrics_files.txt";
@@ -20,47 +21,37 @@ public class Main {
     int[] skew = {10, 20};
     int[] iters = {25};
 
+    List<ModelParameters> configurations = new ArrayList<>();
     for (int gl : glove) {
       for (int it : iters) {
-        Word2Vec word2Vec = new Word2Vec();
-        System.out.println(String.format("GLOVE-%d_it-%d started", gl, it));
         /*word2Vec.loadModel(res + String.format("GLOVE-%d_it-%d", gl, it), 1);
         Model model = word2Vec.getModel();
         ArithmeticMetric metric = new ArithmeticMetric(model);
         metric.measure(metricNames, resultGl + String.format("sz-%d_it-%d", gl, it));*/
-
-        Word2Vec.ModelTrainer modelTrainer = word2Vec.createTrainer();
-        modelTrainer.buildVocab(input);
-        ModelParameters modelParameters = (new ModelParameters.Builder(input)).setModelName("GLOVE").
-                setGloveVecSize(gl).setTrainingIters(it).build();
-        modelTrainer.trainModel(modelParameters);
-        word2Vec.saveModel(res + String.format("GLOVE-%d_it-%d", gl, it));
-        System.out.println("\n\n");
+        configurations.add((new ModelParameters.Builder(input)).setModelName("GLOVE").
+                setGloveVecSize(gl).setTrainingIters(it).build());
       }
     }
 
     for (int sy : sym) {
       for (int sk : skew) {
         for (int it : iters) {
-          Word2Vec word2Vec = new Word2Vec();
-          System.out.println(String.format("DECOMP-%d-%d_it-%d", sy, sk, it));
           /*Word2Vec word2Vec = new Word2Vec();
           word2Vec.loadModel(res + String.format("DECOMP-%d-%d_it-%d", sy, sk, it), 1);
           Model model = word2Vec.getModel();
           ArithmeticMetric metric = new ArithmeticMetric(model);
           metric.measure(metricNames, resultDec + String.format("sz-%d-%d_it-%d", sy, sk, it));*/
-
-          Word2Vec.ModelTrainer modelTrainer = word2Vec.createTrainer();
-          modelTrainer.buildVocab(input);
-          ModelParameters modelParameters = (new ModelParameters.Builder(input)).setModelName("DECOMP").
-                  setSkewSize(sk).setSymSize(sy).setTrainingIters(it).build();
-          modelTrainer.trainModel(modelParameters);
-          word2Vec.saveModel(res + String.format("DECOMP-%d-%d_it-%d", sy, sk, it));
-          System.out.println("\n\n");
+          configurations.add((new ModelParameters.Builder(input)).setModelName("DECOMP").
+                  setSkewSize(sk).setSymSize(sy).setTrainingIters(it).build());
         }
       }
     }
 
+    // vocabulary and cooccurrences are counted once for the whole grid
+    SweepRunner.build((new ModelParameters.Builder(input)).build())
+            .setOutputDir(res)
+            .run(configurations);
+
 
     /*final int argsNumber = args.length;
     for (int i = 0; i < argsNumber; i++) {
@@ -3,49 +3,109 @@ package com.expleague.ml.embedding;
 import com.expleague.commons.math.vectors.Vec;
 import com.expleague.commons.math.vectors.Mx;
 import com.expleague.commons.math.vectors.VecTools;
-import com.expleague.commons.util.ArrayTools;
+import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
 import com.expleague.ml.embedding.exceptions.Word2VecUsageException;
 import com.expleague.ml.embedding.model_functions.AbstractModelFunction;
+import com.expleague.ml.embedding.neighbours.ArrayVectorStore;
+import com.expleague.ml.embedding.neighbours.BatchSearch;
+import com.expleague.ml.embedding.neighbours.ExactIndex;
+import com.expleague.ml.embedding.neighbours.HnswIndex;
+import com.expleague.ml.embedding.neighbours.NeighbourIndex;
+import com.expleague.ml.embedding.neighbours.VectorStore;
 import com.expleague.ml.embedding.text_utils.Vocabulary;
+import gnu.trove.set.hash.TIntHashSet;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class Model {
 
-    private Mx modelVectors;
     private Vocabulary vocabulary;
     private int vocab_size;
     private AbstractModelFunction modelFunction;
     private int vector_size;
+    // normalized vectors, on the heap or memory-mapped
+    private VectorStore vectors;
+    private NeighbourIndex exactIndex;
+    private NeighbourIndex neighbourIndex;
+    private BatchSearch batchSearch;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
 
     public Model(AbstractModelFunction modelFunction, Vocabulary vocabulary) {
-        modelVectors = modelFunction.getModelVectors();
+        final Mx trained = modelFunction.getModelVectors();
         this.vocabulary = vocabulary;
         vocab_size = vocabulary.size();
         this.modelFunction = modelFunction;
-        vector_size = modelVectors.columns();
+        vector_size = trained.columns();
 
-        normalizeModelVectors();
+        normalizeModelVectors(trained);
     }
 
-    private void normalizeModelVectors() {
-        final int n = modelVectors.rows();
+    // Read-only model over vectors that are normalized already, e.g. mapped from eval_vectors.norm.
+    public Model(VectorStore vectors, Vocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        vocab_size = vocabulary.size();
+        vector_size = vectors.dim();
+        setVectors(vectors);
+    }
+
+    // Normalizes a copy, the vectors of the model function may be its live parameters.
+    private void normalizeModelVectors(Mx trained) {
+        final int n = trained.rows();
+        final double[] normalized = new double[n * vector_size];
         IntStream.range(0, n).parallel().forEach(i -> {
-            double sq = Math.sqrt(VecTools.sum2(modelVectors.row(i)));
-            for (int j = 0; j < modelVectors.columns(); j++) {
-                modelVectors.set(i, j, modelVectors.get(i, j) / sq);
+            double sq = Math.sqrt(VecTools.sum2(trained.row(i)));
+            for (int j = 0; j < vector_size; j++) {
+                normalized[i * vector_size + j] = trained.get(i, j) / sq;
             }
         });
+        setVectors(new ArrayVectorStore(normalized, vector_size));
+    }
+
+    private void setVectors(VectorStore vectors) {
+        this.vectors = vectors;
+        exactIndex = new ExactIndex(vectors);
+        neighbourIndex = exactIndex;
+        batchSearch = new BatchSearch(vectors);
+    }
+
+    // Index used by the getClosestWords* methods, null restores the exact scan.
+    public void setNeighbourIndex(NeighbourIndex index) {
+        neighbourIndex = index == null ? exactIndex : index;
+    }
+
+    public NeighbourIndex getNeighbourIndex() {
+        return neighbourIndex;
+    }
+
+    public NeighbourIndex getExactIndex() {
+        return exactIndex;
+    }
+
+    // Builds an HNSW index over the normalized vectors and starts using it.
+    public HnswIndex buildHnswIndex(HnswIndex.Parameters parameters) {
+        final HnswIndex index = HnswIndex.build(vectors, parameters);
+        setNeighbourIndex(index);
+        return index;
+    }
+
+    public HnswIndex loadHnswIndex(Path path) throws IOException {
+        final HnswIndex index = HnswIndex.load(path, vectors);
+        setNeighbourIndex(index);
+        return index;
     }
 
     public Vec getVectorByWord(String word) {
         int w = vocabulary.wordToIndex(word);
         if (w == Vocabulary.NO_ENTRY_VALUE)
             throw new Word2VecUsageException("There's no word " + word + " in the vocabulary.");
-        return modelVectors.row(w);
+        final double[] row = new double[vector_size];
+        vectors.copyRows(w, w + 1, row);
+        return new ArrayVec(row);
     }
 
     public boolean isWordInVocab(String word) {
@@ -65,21 +125,66 @@ public class Model {
     }
 
     public List<String> getClosestWords(Vec vector, int top) {
-        return getClosestWordsExcept(vector, top, new ArrayList<>());
+        return getClosestWordsExcept(vector, top, Collections.emptyList());
     }
 
     public List<String> getClosestWordsExcept(Vec vector, int top, List<String> exceptWords) {
-        int[] order = ArrayTools.sequence(0, vocab_size);
-        List<Integer> exceptIds = new ArrayList<>();
-        exceptWords.forEach(word -> exceptIds.add(vocabulary.wordToIndex(word)));
-        double[] weights = IntStream.of(order).mapToDouble(idx -> {
-            if (exceptIds.contains(idx))
-                return Double.MAX_VALUE;
-            return -getDistance(modelVectors.row(idx), vector);
-        }).toArray();
-        ArrayTools.parallelSort(weights, order);
-        return IntStream.range(0, top).mapToObj(idx ->
-                vocabulary.indexToWord(order[idx])).collect(Collectors.toList());
+        final Scratch scratch = this.scratch.get();
+        final int found = closest(vector, top, exceptWords, scratch);
+        final List<String> result = new ArrayList<>(found);
+        for (int r = 0; r < found; r++)
+            result.add(vocabulary.indexToWord(scratch.ids[r]));
+        return result;
+    }
+
+    public List<Neighbour> getClosestWordsWithScores(Vec vector, int top, List<String> exceptWords) {
+        final Scratch scratch = this.scratch.get();
+        final int found = closest(vector, top, exceptWords, scratch);
+        final List<Neighbour> result = new ArrayList<>(found);
+        for (int r = 0; r < found; r++)
+            result.add(new Neighbour(vocabulary.indexToWord(scratch.ids[r]), scratch.scores[r]));
+        return result;
+    }
+
+    // Closest words for every row of queries at once, always exact whatever the neighbour index is.
+    // exceptWords.get(q) are skipped for the row q.
+    public List<List<String>> getClosestWordsExcept(Mx queries, int top, List<List<String>> exceptWords) {
+        final int count = queries.rows();
+        final double[] flat = new double[count * vector_size];
+        final int[][] except = new int[count][];
+        for (int q = 0; q < count; q++) {
+            for (int k = 0; k < vector_size; k++)
+                flat[q * vector_size + k] = queries.get(q, k);
+            final List<String> words = exceptWords.get(q);
+            except[q] = new int[words.size()];
+            for (int w = 0; w < words.size(); w++)
+                except[q][w] = vocabulary.wordToIndex(words.get(w));
+        }
+        final int[] ids = new int[count * top];
+        final int[] found = new int[count];
+        batchSearch.search(flat, count, top, except, ids, new double[count * top], found);
+
+        final List<List<String>> result = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            final List<String> closest = new ArrayList<>(found[q]);
+            for (int r = 0; r < found[q]; r++)
+                closest.add(vocabulary.indexToWord(ids[q * top + r]));
+            result.add(closest);
+        }
+        return result;
+    }
+
+    // Top words by cosine similarity, best first, in ids[0, result) and scores[0, result) of the scratch.
+    private int closest(Vec vector, int top, List<String> exceptWords, Scratch scratch) {
+        scratch.prepare(vector_size, top);
+        final double[] query = scratch.query;
+        for (int k = 0; k < vector_size; k++)
+            query[k] = vector.get(k);
+        final TIntHashSet except = scratch.except;
+        for (int w = 0; w < exceptWords.size(); w++)
+            except.add(vocabulary.wordToIndex(exceptWords.get(w)));
+
+        return neighbourIndex.search(query, top, except, scratch.ids, scratch.scores);
     }
 
     public double getDistance(Vec vec1, Vec vec2) {
@@ -93,4 +198,46 @@ public class Model {
     public List<String> getVocabulary() {
         return vocabulary.getEntries();
     }
+
+    public static class Neighbour {
+        private final String word;
+        private final double score;
+
+        public Neighbour(String word, double score) {
+            this.word = word;
+            this.score = score;
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        // scalar product of the normalized word vector and the query
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return word + ":" + score;
+        }
+    }
+
+    // Per-thread buffers of the top-k search, grown on demand and reused between calls.
+    private static class Scratch {
+        double[] query = new double[0];
+        int[] ids = new int[0];
+        double[] scores = new double[0];
+        final TIntHashSet except = new TIntHashSet();
+
+        void prepare(int dim, int top) {
+            if (query.length < dim)
+                query = new double[dim];
+            if (ids.length < top) {
+                ids = new int[top];
+                scores = new double[top];
+            }
+            except.clear();
+        }
+    }
 }
@@ -1,5 +1,11 @@
 package com.expleague.ml.embedding;
 
+import com.expleague.ml.embedding.model_functions.Kernels;
+import com.expleague.ml.embedding.model_functions.ParameterMx;
+import com.expleague.ml.embedding.model_functions.TrainingScheduler;
+import com.expleague.ml.embedding.text_utils.Tokenizer;
+import com.expleague.ml.embedding.text_utils.Vocabulary;
+
 public class ModelParameters {
     private final String filepath;
     private final int leftWindow;
@@ -9,9 +15,26 @@ public class ModelParameters {
     private final int symSize;
     private final int skewSize;
     private final int trainingIters;
+    private final int threads;
+    private final long cooccurencesMemory;
+    private final Tokenizer.Type tokenizer;
+    private final boolean precomputeWeights;
+    private final ParameterMx.Precision precision;
+    private final Kernels.Type kernels;
+    private final TrainingScheduler.Type scheduler;
+    private final int minCount;
+    private final int maxVocabSize;
+    private final long seed;
+    private final String checkpointDir;
+    private final int checkpointEpochs;
+    private final int checkpointMinutes;
 
     private ModelParameters(String filepath, String modelName, int leftWindow, int rightWindow,
-                            int gloveVecSize, int symSize, int skewSize, int trainingIters) {
+                            int gloveVecSize, int symSize, int skewSize, int trainingIters, int threads,
+                            long cooccurencesMemory, Tokenizer.Type tokenizer, boolean precomputeWeights,
+                            ParameterMx.Precision precision, Kernels.Type kernels,
+                            TrainingScheduler.Type scheduler, int minCount, int maxVocabSize, long seed,
+                            String checkpointDir, int checkpointEpochs, int checkpointMinutes) {
         this.filepath = filepath;
         this.leftWindow = leftWindow;
         this.rightWindow = rightWindow;
@@ -20,6 +43,19 @@ public class ModelParameters {
         this.symSize = symSize;
         this. skewSize = skewSize;
         this.trainingIters = trainingIters;
+        this.threads = threads;
+        this.cooccurencesMemory = cooccurencesMemory;
+        this.tokenizer = tokenizer;
+        this.precomputeWeights = precomputeWeights;
+        this.precision = precision;
+        this.kernels = kernels;
+        this.scheduler = scheduler;
+        this.minCount = minCount;
+        this.maxVocabSize = maxVocabSize;
+        this.seed = seed;
+        this.checkpointDir = checkpointDir;
+        this.checkpointEpochs = checkpointEpochs;
+        this.checkpointMinutes = checkpointMinutes;
     }
 
     public String getFilepath() {
@@ -54,6 +90,68 @@ public class ModelParameters {
         return trainingIters;
     }
 
+    // Threads for counting cooccurrences and for training.
+    public int getThreads() {
+        return threads;
+    }
+
+    // Memory budget in bytes for counting cooccurrences, 0 keeps the whole matrix on the heap while counting.
+    public long getCooccurencesMemory() {
+        return cooccurencesMemory;
+    }
+
+    public Tokenizer.Type getTokenizer() {
+        return tokenizer;
+    }
+
+    // Whether f(Xij) and log(Xij) are tabulated once (8 bytes per cooccurrence) or recomputed every epoch.
+    public boolean isPrecomputeWeights() {
+        return precomputeWeights;
+    }
+
+    // FLOAT keeps vectors and AdaGrad accumulators in single precision.
+    public ParameterMx.Precision getPrecision() {
+        return precision;
+    }
+
+    public Kernels.Type getKernels() {
+        return kernels;
+    }
+
+    public TrainingScheduler.Type getScheduler() {
+        return scheduler;
+    }
+
+    // Words occurring less often are left out of the vocabulary.
+    public int getMinCount() {
+        return minCount;
+    }
+
+    // Only this many most frequent words are kept, 0 keeps all words that pass minCount.
+    public int getMaxVocabSize() {
+        return maxVocabSize;
+    }
+
+    // Seed of the initial values and of the order of non-zeroes in every epoch.
+    public long getSeed() {
+        return seed;
+    }
+
+    // Directory that receives vocabulary, cooccurrences and checkpoint.bin while training, null disables checkpoints.
+    public String getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    // A checkpoint is written every this many epochs, 0 for none.
+    public int getCheckpointEpochs() {
+        return checkpointEpochs;
+    }
+
+    // A checkpoint is written after the first epoch that ends this many minutes after the previous one, 0 for none.
+    public int getCheckpointMinutes() {
+        return checkpointMinutes;
+    }
+
 
     public static class Builder {
         private String filepath = "";
@@ -64,15 +162,55 @@ public class ModelParameters {
         private int symSize = 50;
         private int skewSize = 10;
         private int trainingIters = 25;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private long cooccurencesMemory = 0;
+        private Tokenizer.Type tokenizer = Tokenizer.Type.FAST;
+        private boolean precomputeWeights = true;
+        private ParameterMx.Precision precision = ParameterMx.Precision.DOUBLE;
+        private Kernels.Type kernels = Kernels.Type.UNROLLED;
+        private TrainingScheduler.Type scheduler = TrainingScheduler.Type.ENTRIES;
+        private int minCount = Vocabulary.MIN_COUNT;
+        private int maxVocabSize = 0;
+        private long seed = 100500;
+        private String checkpointDir = null;
+        private int checkpointEpochs = 0;
+        private int checkpointMinutes = 0;
 
         public Builder(String filepath) {
             this.filepath = filepath;
         }
 
+        // Starts from the settings of parameters, e.g. to change a few of them for another run.
+        public Builder(ModelParameters parameters) {
+            this.filepath = parameters.filepath;
+            this.leftWindow = parameters.leftWindow;
+            this.rightWindow = parameters.rightWindow;
+            this.modelName = parameters.modelName;
+            this.gloveVecSize = parameters.gloveVecSize;
+            this.symSize = parameters.symSize;
+            this.skewSize = parameters.skewSize;
+            this.trainingIters = parameters.trainingIters;
+            this.threads = parameters.threads;
+            this.cooccurencesMemory = parameters.cooccurencesMemory;
+            this.tokenizer = parameters.tokenizer;
+            this.precomputeWeights = parameters.precomputeWeights;
+            this.precision = parameters.precision;
+            this.kernels = parameters.kernels;
+            this.scheduler = parameters.scheduler;
+            this.minCount = parameters.minCount;
+            this.maxVocabSize = parameters.maxVocabSize;
+            this.seed = parameters.seed;
+            this.checkpointDir = parameters.checkpointDir;
+            this.checkpointEpochs = parameters.checkpointEpochs;
+            this.checkpointMinutes = parameters.checkpointMinutes;
+        }
+
 
         public ModelParameters build() {
             return new ModelParameters(filepath, modelName, leftWindow, rightWindow,
-                    gloveVecSize, symSize, skewSize, trainingIters);
+                    gloveVecSize, symSize, skewSize, trainingIters, threads,
+                    cooccurencesMemory, tokenizer, precomputeWeights, precision, kernels, scheduler,
+                    minCount, maxVocabSize, seed, checkpointDir, checkpointEpochs, checkpointMinutes);
         }
 
         public Builder setModelName(String modelName) {
@@ -109,5 +247,62 @@ public class ModelParameters {
             this.trainingIters = trainingIters;
             return this;
         }
+
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder setCooccurencesMemory(long cooccurencesMemory) {
+            this.cooccurencesMemory = cooccurencesMemory;
+            return this;
+        }
+
+        public Builder setTokenizer(Tokenizer.Type tokenizer) {
+            this.tokenizer = tokenizer;
+            return this;
+        }
+
+        public Builder setPrecomputeWeights(boolean precomputeWeights) {
+            this.precomputeWeights = precomputeWeights;
+            return this;
+        }
+
+        public Builder setPrecision(ParameterMx.Precision precision) {
+            this.precision = precision;
+            return this;
+        }
+
+        public Builder setKernels(Kernels.Type kernels) {
+            this.kernels = kernels;
+            return this;
+        }
+
+        public Builder setScheduler(TrainingScheduler.Type scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public Builder setMinCount(int minCount) {
+            this.minCount = minCount;
+            return this;
+        }
+
+        public Builder setMaxVocabSize(int maxVocabSize) {
+            this.maxVocabSize = maxVocabSize;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder setCheckpoints(String checkpointDir, int everyEpochs, int everyMinutes) {
+            this.checkpointDir = checkpointDir;
+            this.checkpointEpochs = everyEpochs;
+            this.checkpointMinutes = everyMinutes;
+            return this;
+        }
     }
 }
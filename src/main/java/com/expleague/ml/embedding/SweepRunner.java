@@ -0,0 +1,201 @@
+package com.expleague.ml.embedding;
+
+import com.expleague.ml.embedding.exceptions.Word2VecUsageException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Trains many configurations over one corpus. Vocabulary, cooccurrences and weight tables are built once
+// and shared read-only by all the models; up to threadBudget / threadsPerModel models train at the same time
+// with threadsPerModel threads each. Corpus settings of the configurations (windows, tokenizer, min count,
+// vocabulary size) have to be the ones the corpus was built with, run() rejects a grid that changes them.
+public class SweepRunner {
+    private final Word2Vec corpus;
+    private final ModelParameters corpusParameters;
+    private int threadBudget = Runtime.getRuntime().availableProcessors();
+    private int threadsPerModel = 1;
+    private String outputDir;
+    private boolean keepModels;
+
+    public static class Result {
+        private final ModelParameters parameters;
+        private final Word2Vec word2Vec;
+        private final long trainNanos;
+        private final Exception error;
+
+        Result(ModelParameters parameters, Word2Vec word2Vec, long trainNanos, Exception error) {
+            this.parameters = parameters;
+            this.word2Vec = word2Vec;
+            this.trainNanos = trainNanos;
+            this.error = error;
+        }
+
+        public ModelParameters getParameters() {
+            return parameters;
+        }
+
+        // null if training failed or the model was saved and not kept, see setKeepModels
+        public Word2Vec getWord2Vec() {
+            return word2Vec;
+        }
+
+        public long getTrainNanos() {
+            return trainNanos;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    // corpus must have vocabulary and cooccurrences, built or loaded in mode 0, with the settings of corpusParameters
+    public SweepRunner(Word2Vec corpus, ModelParameters corpusParameters) {
+        this.corpus = corpus;
+        this.corpusParameters = corpusParameters;
+    }
+
+    // Reads the corpus once with the settings of corpusParameters.
+    public static SweepRunner build(ModelParameters corpusParameters) {
+        final Word2Vec corpus = new Word2Vec();
+        corpus.createTrainer().buildVocabAndCooccurences(corpusParameters);
+        return new SweepRunner(corpus, corpusParameters);
+    }
+
+    // Training threads of all the models together.
+    public SweepRunner setThreadBudget(int threadBudget) {
+        this.threadBudget = threadBudget;
+        return this;
+    }
+
+    public SweepRunner setThreadsPerModel(int threadsPerModel) {
+        this.threadsPerModel = threadsPerModel;
+        return this;
+    }
+
+    // Each model is saved into its own subdirectory named by name(parameters).
+    public SweepRunner setOutputDir(String outputDir) {
+        this.outputDir = outputDir;
+        return this;
+    }
+
+    // Saved models are dropped from the results unless kept, so that memory doesn't grow with the grid.
+    // Without an output directory the models are always kept.
+    public SweepRunner setKeepModels(boolean keepModels) {
+        this.keepModels = keepModels;
+        return this;
+    }
+
+    // Model, sizes and iterations, then every training setting that differs from the default.
+    public static String name(ModelParameters parameters) {
+        final StringBuilder name = new StringBuilder();
+        if ("DECOMP".equals(parameters.getModelName()))
+            name.append(String.format("DECOMP-%d-%d_it-%d", parameters.getSymSize(), parameters.getSkewSize(), parameters.getTrainingIters()));
+        else
+            name.append(String.format("%s-%d_it-%d", parameters.getModelName(), parameters.getGloveVecSize(), parameters.getTrainingIters()));
+        final ModelParameters defaults = new ModelParameters.Builder(parameters.getFilepath()).build();
+        if (parameters.getSeed() != defaults.getSeed())
+            name.append("_seed-").append(parameters.getSeed());
+        if (parameters.getPrecision() != defaults.getPrecision())
+            name.append('_').append(parameters.getPrecision());
+        if (parameters.getScheduler() != defaults.getScheduler())
+            name.append('_').append(parameters.getScheduler());
+        if (parameters.getKernels() != defaults.getKernels())
+            name.append('_').append(parameters.getKernels());
+        if (parameters.isPrecomputeWeights() != defaults.isPrecomputeWeights())
+            name.append(parameters.isPrecomputeWeights() ? "_precomputed" : "_computed");
+        return name.toString();
+    }
+
+    // Results come in the order of configurations; a failed configuration does not stop the others.
+    public List<Result> run(List<ModelParameters> configurations) throws InterruptedException {
+        if (configurations.isEmpty())
+            return new ArrayList<>();
+        if (threadsPerModel < 1 || threadBudget < 1)
+            throw new Word2VecUsageException("Thread budget and threads per model should be positive.");
+        final Set<String> names = new HashSet<>();
+        final Set<Path> checkpointDirs = new HashSet<>();
+        for (ModelParameters configuration : configurations) {
+            checkCorpusSettings(configuration);
+            // models trained at the same time would overwrite each other's files
+            if (outputDir != null && !names.add(name(configuration)))
+                throw new Word2VecUsageException("Two configurations would be saved as " + name(configuration) + ".");
+            if (configuration.getCheckpointDir() != null
+                && !checkpointDirs.add(Paths.get(configuration.getCheckpointDir()).toAbsolutePath().normalize()))
+                throw new Word2VecUsageException("Configuration " + name(configuration) + " shares checkpoint directory "
+                    + configuration.getCheckpointDir() + " with another one.");
+        }
+        final int threads = Math.min(threadsPerModel, threadBudget);
+        final int parallel = Math.min(configurations.size(), threadBudget / threads);
+
+        final AtomicInteger started = new AtomicInteger();
+        final ExecutorService pool = Executors.newFixedThreadPool(parallel, task -> {
+            final Thread thread = new Thread(task, "sweep-" + started.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final List<Future<Result>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+        try {
+            for (ModelParameters configuration : configurations) {
+                final ModelParameters parameters = new ModelParameters.Builder(configuration).setThreads(threads).build();
+                final Word2Vec word2Vec = corpus.shareCorpus();
+                futures.add(pool.submit(() -> train(word2Vec, parameters)));
+            }
+            final List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures)
+                results.add(future.get());
+            System.out.println(String.format("Sweep of %d models, %d at a time with %d threads each, took %.1f s",
+                configurations.size(), parallel, threads, (System.nanoTime() - start) / 1e9));
+            return results;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void checkCorpusSettings(ModelParameters parameters) {
+        final String setting;
+        if (parameters.getLeftWindow() != corpusParameters.getLeftWindow() || parameters.getRightWindow() != corpusParameters.getRightWindow())
+            setting = "windows";
+        else if (parameters.getTokenizer() != corpusParameters.getTokenizer())
+            setting = "tokenizer";
+        else if (parameters.getMinCount() != corpusParameters.getMinCount())
+            setting = "min count";
+        else if (parameters.getMaxVocabSize() != corpusParameters.getMaxVocabSize())
+            setting = "vocabulary size";
+        else
+            return;
+        throw new Word2VecUsageException("Configuration " + name(parameters) + " has other " + setting
+            + " than the shared corpus, sweep it over a separately built corpus.");
+    }
+
+    private Result train(Word2Vec word2Vec, ModelParameters parameters) {
+        final String name = name(parameters);
+        System.out.println(name + " started");
+        final long start = System.nanoTime();
+        try {
+            word2Vec.createTrainer().trainModel(parameters);
+            final long trainNanos = System.nanoTime() - start;
+            if (outputDir != null) {
+                Files.createDirectories(Paths.get(outputDir, name));
+                word2Vec.saveModel(outputDir + "/" + name);
+            }
+            System.out.println(String.format("%s trained in %.1f s", name, trainNanos / 1e9));
+            return new Result(parameters, outputDir == null || keepModels ? word2Vec : null, trainNanos, null);
+        } catch (Exception e) {
+            System.out.println(name + " failed: " + e);
+            return new Result(parameters, null, System.nanoTime() - start, e);
+        }
+    }
+}
@@ -4,13 +4,24 @@ import com.expleague.commons.math.vectors.Mx;
 import com.expleague.commons.math.vectors.impl.mx.SparseMx;
 import com.expleague.ml.embedding.exceptions.*;
 import com.expleague.ml.embedding.model_functions.AbstractModelFunction;
+import com.expleague.ml.embedding.model_functions.CooccurencesWeights;
 import com.expleague.ml.embedding.model_functions.ModelChooser;
+import com.expleague.ml.embedding.neighbours.HnswIndex;
+import com.expleague.ml.embedding.neighbours.MappedVectorStore;
+import com.expleague.ml.embedding.neighbours.VectorStore;
+import com.expleague.ml.embedding.telemetry.TrainingListener;
+import com.expleague.ml.embedding.text_utils.BinaryModelIO;
 import com.expleague.ml.embedding.text_utils.CooccurencesBuilder;
+import com.expleague.ml.embedding.text_utils.CooccurencesIO;
+import com.expleague.ml.embedding.text_utils.CorpusPipeline;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import com.expleague.ml.embedding.text_utils.ModelFormat;
 import com.expleague.ml.embedding.text_utils.Vocabulary;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
@@ -19,124 +30,369 @@ public class Word2Vec {
 
     private Vocabulary vocabulary;
     private int vocab_size;
-    private Mx cooccurences;
+    private CsrCooccurences cooccurences;
     private int leftWindow;
     private int rightWindow;
 
+    // rows of cooccurrences the delta added to when the model was loaded with one
+    private int[] changedRows;
+    // f(Xij) and log(Xij) tables shared by all instances made by shareCorpus
+    private CooccurencesWeights sharedWeights;
+
     private AbstractModelFunction model;
+    // normalized evaluation vectors mapped from eval_vectors.norm, set instead of model in mode 1
+    private VectorStore mappedVectors;
+    // neighbour index saved next to eval vectors, picked up by getModel()
+    private Path neighbourIndex;
 
     public int vocabSize() {
         return vocab_size;
     }
 
+    // Non-zeroes of the cooccurrence matrix, 0 before it is built or loaded.
+    public long cooccurencesNonZeroes() {
+        return cooccurences == null ? 0 : cooccurences.nonZeroes();
+    }
+
     public ModelTrainer createTrainer() {
         return new ModelTrainer();
     }
 
-    public Model getModel() {
-        return new Model(model, vocabulary);
+    // New instance over the same vocabulary, cooccurrences and weight tables, for training another model
+    // without counting them again. They are read-only during training, so the models of several such
+    // instances may train at the same time.
+    public synchronized Word2Vec shareCorpus() {
+        if (vocabulary == null || cooccurences == null)
+            throw new Word2VecUsageException("Build or load vocabulary and cooccurrences before sharing them.");
+        if (sharedWeights == null)
+            sharedWeights = new CooccurencesWeights(cooccurences, true);
+        final Word2Vec shared = new Word2Vec();
+        shared.vocabulary = vocabulary;
+        shared.vocab_size = vocab_size;
+        shared.cooccurences = cooccurences;
+        shared.leftWindow = leftWindow;
+        shared.rightWindow = rightWindow;
+        shared.sharedWeights = sharedWeights;
+        return shared;
     }
 
-    public void saveModel(String filepath) throws IOException {
-        try (Writer fout = Files.newBufferedWriter(Paths.get(filepath + "/vocab.txt"))) {
-            fout.append(Integer.toString(vocab_size)).append('\n');
-            for (String word : vocabulary.getEntries()) {
-                fout.append(word).append('\n');
+    public Model getModel() {
+        final Model result = mappedVectors != null ? new Model(mappedVectors, vocabulary) : new Model(model, vocabulary);
+        if (neighbourIndex != null && Files.exists(neighbourIndex)) {
+            try {
+                result.loadHnswIndex(neighbourIndex);
+            } catch (IOException e) {
+                throw new LoadingModelException("Couldn't load the neighbour index. " + e.getMessage());
             }
         }
-        try (Writer fout = Files.newBufferedWriter(Paths.get(filepath + "/coocurences.txt"))) {
-            fout.append(Integer.toString(leftWindow)).append("\n");
-            fout.append(Integer.toString(rightWindow)).append("\n");
-            for (int i = 0; i < vocab_size; i++) {
-                for (int j = 0; j < vocab_size; j++) {
-                    double crc = cooccurences.get(i, j);
-                    if (crc > 0d) {
-                        fout.append(Integer.toString(j))
-                            .append(' ')
-                            .append(Double.toString(cooccurences.get(i, j)))
-                            .append(' ');
+        return result;
+    }
+
+    // Builds an HNSW index over the evaluation vectors of a saved model and stores it next to them as eval_vectors.hnsw,
+    // models loaded from filepath in mode 1 use it for getClosestWords.
+    public static void buildNeighbourIndex(String filepath, HnswIndex.Parameters parameters) throws IOException {
+        final Word2Vec saved = new Word2Vec();
+        saved.loadModel(filepath, 1);
+        final HnswIndex index = saved.getModel().buildHnswIndex(parameters);
+        index.save(Paths.get(filepath + "/eval_vectors.hnsw"));
+    }
+
+    public void saveModel(String filepath) throws IOException {
+        saveModel(filepath, ModelFormat.BINARY);
+    }
+
+    public void saveModel(String filepath, ModelFormat format) throws IOException {
+        if (model == null)
+            throw new Word2VecUsageException("The model was loaded for evaluation only and can't be saved.");
+        saveCorpusData(filepath, format);
+        model.saveModel(filepath, format);
+        MappedVectorStore.write(Paths.get(filepath + "/eval_vectors.norm"), model.getEvalVectors());
+        // an index of the previous vectors would be silently wrong, so would be a checkpoint of them
+        Files.deleteIfExists(Paths.get(filepath + "/eval_vectors.hnsw"));
+        Files.deleteIfExists(Paths.get(filepath + "/checkpoint.bin"));
+    }
+
+    // Vocabulary and cooccurrences, everything a checkpoint needs besides itself.
+    private void saveCorpusData(String filepath, ModelFormat format) throws IOException {
+        vocabulary.write(Paths.get(filepath + "/vocab.txt"));
+        if (format == ModelFormat.BINARY) {
+            CooccurencesIO.write(Paths.get(filepath + "/coocurences.bin"), cooccurences, leftWindow, rightWindow);
+            Files.deleteIfExists(Paths.get(filepath + "/coocurences.txt"));
+        } else {
+            try (Writer fout = Files.newBufferedWriter(Paths.get(filepath + "/coocurences.txt"))) {
+                fout.append(Integer.toString(leftWindow)).append("\n");
+                fout.append(Integer.toString(rightWindow)).append("\n");
+                final int[] rowPtr = cooccurences.rowPtr();
+                final int[] columns = cooccurences.columns();
+                final float[] values = cooccurences.values();
+                for (int i = 0; i < vocab_size; i++) {
+                    for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+                        if (values[k] > 0d) {
+                            fout.append(Integer.toString(columns[k]))
+                                .append(' ')
+                                .append(Float.toString(values[k]))
+                                .append(' ');
+                        }
                     }
+                    fout.append('\n');
                 }
-                fout.append('\n');
             }
+            Files.deleteIfExists(Paths.get(filepath + "/coocurences.bin"));
         }
-        model.saveModel(filepath);
+    }
+
+    // Saves the model together with checkpoint.bin holding the optimizer state, loading it in mode 0
+    // and calling ModelTrainer.resumeTraining continues the run from the next epoch.
+    public void saveCheckpoint(String filepath) throws IOException {
+        saveModel(filepath);
+        model.saveCheckpoint(Paths.get(filepath + "/checkpoint.bin"));
     }
 
     /**
-     * Mode 0 = load vocab + cooccurences + train vectors
-     * Mode 1 = load vocab + vectors for evaluation
+     * Mode 0 = load vocab + cooccurences + train vectors, or the whole training state if there is checkpoint.bin
+     * (saved by saveCheckpoint or written periodically to ModelParameters.getCheckpointDir() during training)
+     * Mode 1 = load vocab + vectors for evaluation. Normalized vectors saved in eval_vectors.norm are memory-mapped,
+     * nothing is parsed and rows are paged in on first use; the model is read-only then.
      */
     public void loadModel(String filepath, int mode) throws IOException {
-        if (model != null || vocabulary != null || cooccurences != null)
+        loadModel(filepath, mode, null, null);
+    }
+
+    // Refresh of a model trained on a growing corpus: loads it in mode 0 and adds cooccurrences of deltaPath,
+    // the text appended to the corpus since the model was saved, to the stored ones. Only the delta is read,
+    // with the stored windows and over the stored vocabulary, whose counts are updated; words that aren't in it
+    // are skipped, so new words need a full rebuild. Tokenizer, threads and memory limit of counting come from
+    // parameters. ModelTrainer.warmStart then continues training, saveModel stores the sum for the next delta.
+    public void loadModel(String filepath, String deltaPath, ModelParameters parameters) throws IOException {
+        loadModel(filepath, 0, deltaPath, parameters);
+    }
+
+    private void loadModel(String filepath, int mode, String deltaPath, ModelParameters deltaParameters) throws IOException {
+        if (model != null || mappedVectors != null || vocabulary != null || cooccurences != null)
             throw new LoadingModelException("You've already started constructing this model. Please, create the new one for loading.");
 
         System.out.println("Loading vocabulary.");
-        try (BufferedReader fin = new BufferedReader(new FileReader(new File(filepath + "/vocab.txt")))){
-            vocab_size = Integer.parseInt(fin.readLine());
-            List<String> words = new ArrayList<>();
-            for (int i = 0; i < vocab_size; i++)
-                words.add(fin.readLine());
-            vocabulary = new Vocabulary(words);
-        } catch (FileNotFoundException e) {
+        if (!Files.exists(Paths.get(filepath + "/vocab.txt")))
             throw new LoadingModelException("Couldn't find vocabulary file to load the model from.");
-        }
+        vocabulary = Vocabulary.read(Paths.get(filepath + "/vocab.txt"));
+        vocab_size = vocabulary.size();
         System.out.println("Vocabulary loaded.");
 
+        final Path normalized = Paths.get(filepath + "/eval_vectors.norm");
+        if (mode == 1 && Files.exists(normalized)) {
+            mappedVectors = MappedVectorStore.open(normalized);
+            if (mappedVectors.size() != vocab_size)
+                throw new LoadingModelException(normalized + " doesn't match the vocabulary.");
+            neighbourIndex = Paths.get(filepath + "/eval_vectors.hnsw");
+            System.out.println("Vectors mapped.");
+            return;
+        }
+
         if (mode == 0) {
             System.out.println("Loading cooccurences.");
-            try (BufferedReader fin = new BufferedReader(new FileReader(new File(filepath + "/coocurences.txt")))) {
-                leftWindow = Integer.parseInt(fin.readLine());
-                rightWindow = Integer.parseInt(fin.readLine());
-                Mx crcs = new SparseMx(vocab_size, vocab_size);
-                for (int i = 0; i < vocab_size; i++) {
-                    String s = fin.readLine();
-                    if (s.isEmpty()) continue;
-                    String[] values = s.split(" ");
-                    for (int k = 0; k < values.length; k += 2) {
-                        int j = Integer.parseInt(values[k]);
-                        crcs.set(i, j, Double.parseDouble(values[k + 1]));
+            if (Files.exists(Paths.get(filepath + "/coocurences.bin"))) {
+                try (CooccurencesIO.Reader fin = new CooccurencesIO.Reader(Paths.get(filepath + "/coocurences.bin"))) {
+                    leftWindow = fin.leftWindow();
+                    rightWindow = fin.rightWindow();
+                    cooccurences = fin.readCsr();
+                }
+            } else {
+                try (BufferedReader fin = new BufferedReader(new FileReader(new File(filepath + "/coocurences.txt")))) {
+                    leftWindow = Integer.parseInt(fin.readLine());
+                    rightWindow = Integer.parseInt(fin.readLine());
+                    Mx crcs = new SparseMx(vocab_size, vocab_size);
+                    for (int i = 0; i < vocab_size; i++) {
+                        String s = fin.readLine();
+                        if (s.isEmpty()) continue;
+                        String[] values = s.split(" ");
+                        for (int k = 0; k < values.length; k += 2) {
+                            int j = Integer.parseInt(values[k]);
+                            crcs.set(i, j, Double.parseDouble(values[k + 1]));
+                        }
                     }
+                    cooccurences = CsrCooccurences.fromMx(crcs);
                 }
-                cooccurences = crcs;
             }
             System.out.println("Cooccurences loaded.");
+            if (deltaPath != null)
+                addDelta(deltaPath, deltaParameters);
         }
 
         System.out.println("Loading vectors.");
-        try (BufferedReader fin = new BufferedReader(new FileReader(new File(filepath + "/train_vectors.txt")))) {
-            String modelName = fin.readLine();
-            ModelParameters modelParameters = (new ModelParameters.Builder(filepath)).setModelName(modelName).build();
-            model = ModelChooser.model(modelParameters, vocabulary, cooccurences);
-            fin.close();
-            model.loadModel(filepath, mode);
+        // periodic checkpoints of a run are written without train vectors
+        final Path checkpoint = Paths.get(filepath + "/checkpoint.bin");
+        final boolean fromCheckpoint = mode == 0 && Files.exists(checkpoint);
+        final String modelName;
+        if (fromCheckpoint) {
+            modelName = BinaryModelIO.readModelType(checkpoint);
+        } else if (Files.exists(Paths.get(filepath + "/train_vectors.bin"))) {
+            modelName = BinaryModelIO.readModelType(Paths.get(filepath + "/train_vectors.bin"));
+        } else {
+            try (BufferedReader fin = new BufferedReader(new FileReader(new File(filepath + "/train_vectors.txt")))) {
+                modelName = fin.readLine();
+            }
         }
+        ModelParameters modelParameters = (new ModelParameters.Builder(filepath)).setModelName(modelName).build();
+        model = ModelChooser.model(modelParameters, vocabulary, cooccurences);
+        if (fromCheckpoint)
+            model.loadCheckpoint(checkpoint);
+        else
+            model.loadModel(filepath, mode);
+        if (mode == 1)
+            neighbourIndex = Paths.get(filepath + "/eval_vectors.hnsw");
         System.out.println("Vectors loaded.");
     }
 
+    private void addDelta(String deltaPath, ModelParameters parameters) throws IOException {
+        System.out.println("Counting cooccurences of " + deltaPath + ".");
+        final CsrCooccurences delta;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(deltaPath), StandardCharsets.UTF_8)) {
+            delta = new CooccurencesBuilder()
+                .setLeftWindow(leftWindow)
+                .setRightWindow(rightWindow)
+                .setVocabulary(vocabulary)
+                .setThreads(parameters.getThreads())
+                .setMemoryLimit(parameters.getCooccurencesMemory())
+                .setTokenizer(parameters.getTokenizer())
+                .buildCsr(reader);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(deltaPath), StandardCharsets.UTF_8)) {
+            vocabulary = vocabulary.addCounts(reader, parameters.getTokenizer());
+        }
+        cooccurences = cooccurences.plus(delta);
+        changedRows = delta.nonEmptyRows();
+        System.out.println("Delta of " + delta.nonZeroes() + " non-zeroes changed " + changedRows.length + " rows of "
+            + vocab_size + ", " + cooccurences.nonZeroes() + " non-zeroes in total.");
+    }
+
     public class ModelTrainer {
+        private final List<TrainingListener> listeners = new ArrayList<>();
+
+        // Gets per-epoch metrics of the models trained or resumed by this trainer.
+        public ModelTrainer addListener(TrainingListener listener) {
+            listeners.add(listener);
+            return this;
+        }
+
         public void buildVocab(String filepath) throws VocabularyBuildingException {
             vocabulary = new Vocabulary(filepath);
             vocab_size = vocabulary.size();
         }
 
-        public void trainModel(ModelParameters modelParameters) throws CooccurencesBuildingException {
-            if (cooccurences == null) {
-                leftWindow = modelParameters.getLeftWindow();
-                rightWindow = modelParameters.getRightWindow();
-                try (final BufferedReader bufferedReader = Files.newBufferedReader(Paths.get(modelParameters.getFilepath()), StandardCharsets.UTF_8)) {
-                    cooccurences = new CooccurencesBuilder()
-                        .setLeftWindow(leftWindow)
-                        .setRightWindow(rightWindow)
-                        .setVocabulary(vocabulary)
-                        .build(bufferedReader);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+        public void buildVocab(ModelParameters modelParameters) throws VocabularyBuildingException {
+            vocabulary = new Vocabulary(modelParameters.getFilepath(), modelParameters.getTokenizer(),
+                modelParameters.getMinCount(), modelParameters.getMaxVocabSize());
+            vocab_size = vocabulary.size();
+        }
+
+        // Builds vocabulary and cooccurrences reading the corpus only once, trainModel then reuses them.
+        public void buildVocabAndCooccurences(ModelParameters modelParameters) throws CooccurencesBuildingException {
+            leftWindow = modelParameters.getLeftWindow();
+            rightWindow = modelParameters.getRightWindow();
+            try (final BufferedReader bufferedReader = Files.newBufferedReader(Paths.get(modelParameters.getFilepath()), StandardCharsets.UTF_8)) {
+                final CorpusPipeline pipeline = new CorpusPipeline()
+                    .setLeftWindow(leftWindow)
+                    .setRightWindow(rightWindow)
+                    .setThreads(modelParameters.getThreads())
+                    .setMemoryLimit(modelParameters.getCooccurencesMemory())
+                    .setTokenizer(modelParameters.getTokenizer())
+                    .setMinCount(modelParameters.getMinCount())
+                    .setMaxVocabSize(modelParameters.getMaxVocabSize())
+                    .run(bufferedReader);
+                vocabulary = pipeline.getVocabulary();
+                vocab_size = vocabulary.size();
+                cooccurences = pipeline.getCooccurences();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Counts cooccurrences over the vocabulary built before, trainModel does it when they are missing.
+        public void buildCooccurences(ModelParameters modelParameters) throws CooccurencesBuildingException {
+            leftWindow = modelParameters.getLeftWindow();
+            rightWindow = modelParameters.getRightWindow();
+            try (final BufferedReader bufferedReader = Files.newBufferedReader(Paths.get(modelParameters.getFilepath()), StandardCharsets.UTF_8)) {
+                cooccurences = new CooccurencesBuilder()
+                    .setLeftWindow(leftWindow)
+                    .setRightWindow(rightWindow)
+                    .setVocabulary(vocabulary)
+                    .setThreads(modelParameters.getThreads())
+                    .setMemoryLimit(modelParameters.getCooccurencesMemory())
+                    .setTokenizer(modelParameters.getTokenizer())
+                    .buildCsr(bufferedReader);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
+        }
+
+        public void trainModel(ModelParameters modelParameters) throws CooccurencesBuildingException {
+            if (cooccurences == null)
+                buildCooccurences(modelParameters);
             //if (model == null)
                 model = ModelChooser.model(modelParameters, vocabulary, cooccurences);
+            if (sharedWeights != null && sharedWeights.isPrecomputed() == modelParameters.isPrecomputeWeights())
+                model.setWeights(sharedWeights);
+            setCheckpoints(modelParameters);
+            listeners.forEach(model::addListener);
+            model.trainModel();
+        }
+
+        // Continues training of a model loaded in mode 0 up to modelParameters.getTrainingIters() epochs, with the
+        // AdaGrad state, epoch and seed of its checkpoint if it had one. Scheduler, threads and kernels are taken
+        // from modelParameters, they should be those of the interrupted run to repeat its trajectory.
+        public void resumeTraining(ModelParameters modelParameters) {
+            if (model == null || cooccurences == null)
+                throw new Word2VecUsageException("Load a model in mode 0 to resume its training.");
+            model.setPrecomputeWeights(modelParameters.isPrecomputeWeights())
+                .setKernels(modelParameters.getKernels())
+                .setScheduler(modelParameters.getScheduler())
+                .setThreads(modelParameters.getThreads())
+                .setTrainingIters(modelParameters.getTrainingIters());
+            setCheckpoints(modelParameters);
+            listeners.forEach(model::addListener);
+            model.trainModel();
+        }
+
+        // Trains modelParameters.getTrainingIters() more epochs of a model loaded with a delta, starting from its vectors
+        // and, if it was saved by saveCheckpoint, from its AdaGrad state; saving it with saveCheckpoint keeps the state
+        // for the next refresh. changedRowsOnly visits only the non-zeroes of the rows the delta added to, so an epoch
+        // costs in proportion to them rather than to the whole matrix.
+        public void warmStart(ModelParameters modelParameters, boolean changedRowsOnly) {
+            if (model == null || cooccurences == null)
+                throw new Word2VecUsageException("Load a model in mode 0 to warm start its training.");
+            if (changedRowsOnly && changedRows == null)
+                throw new Word2VecUsageException("Load the model with a delta to train only the rows it changed.");
+            if (changedRowsOnly && changedRows.length == 0) {
+                System.out.println("The delta has no words of the vocabulary, nothing to train.");
+                return;
+            }
+            model.setPrecomputeWeights(modelParameters.isPrecomputeWeights())
+                .setKernels(modelParameters.getKernels())
+                .setScheduler(modelParameters.getScheduler())
+                .setThreads(modelParameters.getThreads())
+                .setTrainingIters(model.getEpoch() + modelParameters.getTrainingIters())
+                .setActiveRows(changedRowsOnly ? changedRows : null);
+            setCheckpoints(modelParameters);
+            listeners.forEach(model::addListener);
             model.trainModel();
         }
+
+        // The checkpoint directory gets vocabulary and cooccurrences up front, so that loading it in mode 0
+        // works as soon as the first checkpoint.bin is there.
+        private void setCheckpoints(ModelParameters modelParameters) {
+            final String dir = modelParameters.getCheckpointDir();
+            if (dir == null || (modelParameters.getCheckpointEpochs() <= 0 && modelParameters.getCheckpointMinutes() <= 0)) {
+                model.setCheckpoints(null, 0, 0);
+                return;
+            }
+            try {
+                Files.createDirectories(Paths.get(dir));
+                saveCorpusData(dir, ModelFormat.BINARY);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            model.setCheckpoints(Paths.get(dir + "/checkpoint.bin"), modelParameters.getCheckpointEpochs(),
+                modelParameters.getCheckpointMinutes());
+        }
     }
 }
@@ -0,0 +1,6 @@
+package com.expleague.ml.embedding.exceptions;
+
+public class NeighbourIndexException extends RuntimeException {
+    public NeighbourIndexException() {super();}
+    public NeighbourIndexException(String message) { super(message); }
+}
@@ -0,0 +1,6 @@
+package com.expleague.ml.embedding.exceptions;
+
+public class TrainingException extends RuntimeException {
+    public TrainingException() {super();}
+    public TrainingException(String message) { super(message); }
+}
@@ -3,30 +3,209 @@ package com.expleague.ml.embedding.model_functions;
 import com.expleague.commons.math.FuncC1;
 import com.expleague.commons.math.vectors.Mx;
 import com.expleague.commons.math.vectors.MxTools;
+import com.expleague.commons.math.vectors.Vec;
+import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.exceptions.LoadingModelException;
+import com.expleague.ml.embedding.exceptions.TrainingException;
+import com.expleague.ml.embedding.telemetry.EpochMetrics;
+import com.expleague.ml.embedding.telemetry.TrainingListener;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import com.expleague.ml.embedding.text_utils.ModelFormat;
 import com.expleague.ml.embedding.text_utils.Vocabulary;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 // Model J = sum[ f(Xij) * (viT*uj - logXij)^2]
 //TODO stochastic gradient
 public abstract class AbstractModelFunction extends FuncC1.Stub {
     final Vocabulary vocab;
-    final Mx crcLeft;
+    final CsrCooccurences crc;
     final int vocab_size;
+    CooccurencesWeights weights;
+    ParameterMx.Precision precision = ParameterMx.Precision.DOUBLE;
+    Kernels kernels = Kernels.Type.UNROLLED.create();
+    TrainingScheduler.Type scheduler = TrainingScheduler.Type.ENTRIES;
+    int threads = Runtime.getRuntime().availableProcessors();
+    long seed = 100500;
+    int trainingIters;
+    // rows whose non-zeroes are trained, null for all
+    int[] activeRows;
+    // epochs done so far, training continues from the next one
+    int epoch = 0;
+    private Path checkpointPath;
+    private int checkpointEpochs;
+    private int checkpointMinutes;
+    private final List<TrainingListener> listeners = new ArrayList<>();
+    // gradients of the steps are only recorded while someone listens
+    GradientHistogram gradients;
 
     public AbstractModelFunction(Vocabulary vocab, Mx cooc) {
+        this(vocab, cooc == null ? null : CsrCooccurences.fromMx(cooc));
+    }
+
+    // cooc may be null when the model is loaded only for evaluation
+    public AbstractModelFunction(Vocabulary vocab, CsrCooccurences cooc) {
         this.vocab = vocab;
-        this.crcLeft = cooc;
+        this.crc = cooc;
         this.vocab_size = vocab.size();
+        this.weights = cooc == null ? null : new CooccurencesWeights(cooc, true);
+    }
+
+    // false evaluates f(Xij) and log(Xij) on the fly instead of keeping two floats per non-zero
+    public AbstractModelFunction setPrecomputeWeights(boolean precompute) {
+        if (crc != null && weights.isPrecomputed() != precompute)
+            weights = new CooccurencesWeights(crc, precompute);
+        return this;
+    }
+
+    // Uses tables of another model over the same cooccurrences instead of filling its own.
+    public AbstractModelFunction setWeights(CooccurencesWeights weights) {
+        if (weights.cooccurences() != crc)
+            throw new TrainingException("The weights were computed for other cooccurrences.");
+        this.weights = weights;
+        return this;
+    }
+
+    // Storage of vectors and accumulators for training and text loading, binary models keep the stored precision.
+    public AbstractModelFunction setPrecision(ParameterMx.Precision precision) {
+        this.precision = precision;
+        return this;
+    }
+
+    public AbstractModelFunction setKernels(Kernels.Type kernels) {
+        this.kernels = kernels.create();
+        return this;
+    }
+
+    public AbstractModelFunction setScheduler(TrainingScheduler.Type scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    public AbstractModelFunction setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    // Initial values and the order of every epoch are drawn from generators derived from the seed.
+    public AbstractModelFunction setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // Total number of epochs, a resumed run stops at the same one as the original.
+    public AbstractModelFunction setTrainingIters(int trainingIters) {
+        this.trainingIters = trainingIters;
+        return this;
+    }
+
+    // Limits training to the non-zeroes of the given rows, e.g. of those a corpus delta added to; null trains all.
+    public AbstractModelFunction setActiveRows(int[] rows) {
+        this.activeRows = rows;
+        return this;
+    }
+
+    // While trainModel runs, path is overwritten by a checkpoint every everyEpochs epochs and/or after an epoch
+    // that ends everyMinutes or more after the previous checkpoint, 0 disables either rule, a null path both.
+    public AbstractModelFunction setCheckpoints(Path path, int everyEpochs, int everyMinutes) {
+        this.checkpointPath = everyEpochs > 0 || everyMinutes > 0 ? path : null;
+        this.checkpointEpochs = everyEpochs;
+        this.checkpointMinutes = everyMinutes;
+        return this;
+    }
+
+    // Metrics of every epoch go to listener, recording them costs a few percent of the epoch time.
+    public AbstractModelFunction addListener(TrainingListener listener) {
+        if (!listeners.contains(listener))
+            listeners.add(listener);
+        if (gradients == null)
+            gradients = new GradientHistogram();
+        return this;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    // Generator of the given epoch, depends only on the seed and the epoch so that a resumed run draws the same orders.
+    FastRandom epochRandom(int epoch) {
+        return new FastRandom(seed + 0x9E3779B97F4A7C15L * (epoch + 1));
+    }
+
+    // Checkpoint header block: epoch, total iterations, precision and the seed split into two exact halves.
+    Vec checkpointState(ParameterMx.Precision precision) {
+        return new ArrayVec(epoch, trainingIters, precision.ordinal(), seed >>> 32, seed & 0xFFFFFFFFL);
+    }
+
+    void restoreState(Vec state) {
+        epoch = (int) state.get(0);
+        trainingIters = (int) state.get(1);
+        seed = ((long) state.get(3) << 32) | (long) state.get(4);
+    }
+
+    ParameterMx.Precision checkpointPrecision(Vec state) {
+        return ParameterMx.Precision.values()[(int) state.get(2)];
+    }
+
+    static void checkCheckpointType(Path path, String expected, String found) {
+        if (!expected.equals(found))
+            throw new LoadingModelException(path + " is a checkpoint of " + found + ", not of " + expected + ".");
+    }
+
+    // Called by the training loop after the epoch, before the epoch counter moves on.
+    void reportEpoch(String model, TrainingScheduler scheduler, long wallNanos, double score) {
+        if (listeners.isEmpty())
+            return;
+        final Runtime runtime = Runtime.getRuntime();
+        final EpochMetrics metrics = new EpochMetrics(model, epoch, wallNanos, scheduler.entries(), score / scheduler.entries(),
+            scheduler.shuffleNanos(), scheduler.updateNanos(), scheduler.workerEntries(),
+            gradients.mean(), gradients.quantile(0.5), gradients.quantile(0.9), gradients.quantile(0.99), gradients.max(),
+            runtime.totalMemory() - runtime.freeMemory(), runtime.totalMemory(), runtime.maxMemory());
+        gradients.reset();
+        for (TrainingListener listener : listeners)
+            listener.epochFinished(metrics);
+    }
+
+    PeriodicCheckpoints periodicCheckpoints() {
+        return new PeriodicCheckpoints(this, checkpointPath, checkpointEpochs, checkpointMinutes);
+    }
+
+    // Copy of parameters, accumulators and checkpointState() to be written as a checkpoint,
+    // must be called when no training step is running.
+    abstract Checkpoint snapshot();
+
+    // shuffleRows only matters for the ROWS scheduler, it keeps the order each model used to have
+    TrainingScheduler createScheduler(FastRandom rng, boolean shuffleRows, boolean symmetric) {
+        return TrainingScheduler.create(scheduler, crc, activeRows, threads, rng, shuffleRows, symmetric);
     }
 
     public abstract Mx getModelVectors();
 
+    // The vectors of eval_vectors, that a model loaded in mode 1 evaluates with.
+    public abstract Mx getEvalVectors();
+
     public abstract void trainModel();
 
-    public abstract void saveModel(String filepath) throws IOException;
+    public void saveModel(String filepath) throws IOException {
+        saveModel(filepath, ModelFormat.BINARY);
+    }
+
+    public abstract void saveModel(String filepath, ModelFormat format) throws IOException;
 
     public abstract void loadModel(String filepath, int mode) throws IOException;
 
+    // Parameters, AdaGrad accumulators, epoch counter and seed in double precision. Training resumed from it
+    // follows the trajectory of an uninterrupted run as long as the scheduler is deterministic
+    // (one thread or STRATIFIED).
+    public void saveCheckpoint(Path path) throws IOException {
+        snapshot().write(path);
+    }
+
+    public abstract void loadCheckpoint(Path path) throws IOException;
+
     public abstract double likelihood();
 }
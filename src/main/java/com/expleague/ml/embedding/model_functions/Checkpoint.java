@@ -0,0 +1,52 @@
+package com.expleague.ml.embedding.model_functions;
+
+import com.expleague.commons.math.vectors.Vec;
+import com.expleague.commons.math.vectors.VecTools;
+import com.expleague.ml.embedding.text_utils.BinaryModelIO;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Copy of the training state taken between epochs. Taking it is a few array copies, so training
+// goes on while the copy is converted to double precision and written.
+final class Checkpoint {
+    private final String modelType;
+    private final int vocabSize;
+    private final List<Object> blocks = new ArrayList<>();
+    private long bytes = 0;
+
+    Checkpoint(String modelType, int vocabSize) {
+        this.modelType = modelType;
+        this.vocabSize = vocabSize;
+    }
+
+    Checkpoint add(Vec vec) {
+        blocks.add(VecTools.copy(vec));
+        bytes += 8L * vec.dim();
+        return this;
+    }
+
+    Checkpoint add(ParameterMx mx) {
+        blocks.add(mx.copy());
+        bytes += mx.memorySize();
+        return this;
+    }
+
+    // Memory held by the copy.
+    long memorySize() {
+        return bytes;
+    }
+
+    void write(Path path) throws IOException {
+        try (BinaryModelIO.Writer fout = new BinaryModelIO.Writer(path, modelType, vocabSize, false)) {
+            for (Object block : blocks) {
+                if (block instanceof ParameterMx)
+                    fout.writeMx(((ParameterMx) block).toMx());
+                else
+                    fout.writeVec((Vec) block);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.expleague.ml.embedding.model_functions;
+
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+
+import java.util.stream.IntStream;
+
+// f(Xij) and log(Xij) for every non-zero of the CSR cooccurrences, indexed the same way as its values array.
+// X is fixed during training, so by default both tables are filled once, on first use, and read by every epoch.
+// Without precomputing they are evaluated from X on each call, which costs no memory.
+// Safe to share between models training at the same time over the same cooccurrences.
+public class CooccurencesWeights {
+    public final static double WEIGHTING_X_MAX = 10;
+    public final static double WEIGHTING_ALPHA = 0.75;
+
+    private final CsrCooccurences crc;
+    private final boolean precompute;
+    private volatile float[] weights;
+    private volatile float[] logs;
+
+    public CooccurencesWeights(CsrCooccurences crc, boolean precompute) {
+        this.crc = crc;
+        this.precompute = precompute;
+    }
+
+    public static double weightingFunc(double x) {
+        return x < WEIGHTING_X_MAX ? Math.pow(x / WEIGHTING_X_MAX, WEIGHTING_ALPHA) : 1;
+    }
+
+    public CsrCooccurences cooccurences() {
+        return crc;
+    }
+
+    public boolean isPrecomputed() {
+        return precompute;
+    }
+
+    public double weight(int k) {
+        final float[] weights = this.weights;
+        return weights != null ? weights[k] : weightingFunc(crc.values()[k]);
+    }
+
+    public double log(int k) {
+        final float[] logs = this.logs;
+        return logs != null ? logs[k] : Math.log(crc.values()[k]);
+    }
+
+    // Fills the tables if they are enabled and not filled yet, cheap to call before every pass.
+    public void prepare() {
+        if (!precompute || weights != null)
+            return;
+        synchronized (this) {
+            if (weights != null)
+                return;
+            final float[] values = crc.values();
+            final float[] logs = new float[values.length];
+            final float[] weights = new float[values.length];
+            IntStream.range(0, values.length).parallel().forEach(k -> {
+                logs[k] = (float) Math.log(values[k]);
+                weights[k] = (float) weightingFunc(values[k]);
+            });
+            this.logs = logs;
+            this.weights = weights;
+            System.out.println("Weight and log tables take " + (memorySize() >> 20) + "MB for "
+                + values.length + " cooccurrences.");
+        }
+    }
+
+    public long memorySize() {
+        return weights == null ? 0 : 4L * weights.length + 4L * logs.length;
+    }
+}
@@ -1,81 +1,96 @@
 package com.expleague.ml.embedding.model_functions;
 
-import com.expleague.commons.math.MathTools;
 import com.expleague.commons.math.vectors.Mx;
 import com.expleague.commons.math.vectors.Vec;
-import com.expleague.commons.math.vectors.VecIterator;
 import com.expleague.commons.math.vectors.VecTools;
-import com.expleague.commons.math.vectors.impl.mx.VecBasedMx;
 import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
 import com.expleague.commons.random.FastRandom;
 import com.expleague.commons.util.logging.Interval;
 import com.expleague.ml.embedding.exceptions.LoadingModelException;
+import com.expleague.ml.embedding.text_utils.BinaryModelIO;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import com.expleague.ml.embedding.text_utils.ModelFormat;
 import com.expleague.ml.embedding.text_utils.VecIO;
 import com.expleague.ml.embedding.text_utils.Vocabulary;
-import gnu.trove.list.array.TIntArrayList;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.stream.IntStream;
 
 public class DecomposingGloveModelFunction extends AbstractModelFunction {
-  private final int TRAINING_ITERS;
   private static final double LAMBDA = 1e-4;
   private static final double G_DISCOUNT = 1;// - 1e-5;
   private static double TRAINING_STEP_COEFF = 0.1;
 
-  private final static double WEIGHTING_X_MAX = 10;
-  private final static double WEIGHTING_ALPHA = 0.75;
   private int SYM_DIM;
   private int SKEWSYM_DIM;
 
-  private Mx symDecomp;
-  private Mx skewsymDecomp;
+  private ParameterMx symDecomp;
+  private ParameterMx skewsymDecomp;
   private Vec bias;
-  private FastRandom rng = new FastRandom(100500);
+  // AdaGrad accumulators, kept between trainModel calls and in checkpoints
+  private ParameterMx softMaxSym;
+  private ParameterMx softMaxSkewsym;
+  private Vec softMaxBias;
 
   public DecomposingGloveModelFunction(Vocabulary voc, Mx coocc, int sym, int skew, int iters) {
     super(voc, coocc);
     this.SYM_DIM = sym;
     this.SKEWSYM_DIM = skew;
-    this.TRAINING_ITERS = iters;
+    this.trainingIters = iters;
+  }
+
+  public DecomposingGloveModelFunction(Vocabulary voc, CsrCooccurences coocc, int sym, int skew, int iters) {
+    super(voc, coocc);
+    this.SYM_DIM = sym;
+    this.SKEWSYM_DIM = skew;
+    this.trainingIters = iters;
   }
 
   private void initialize() {
-    symDecomp = new VecBasedMx(vocab_size, SYM_DIM);
-    skewsymDecomp = new VecBasedMx(vocab_size, SKEWSYM_DIM);
+    symDecomp = ParameterMx.create(precision, vocab_size, SYM_DIM);
+    skewsymDecomp = ParameterMx.create(precision, vocab_size, SKEWSYM_DIM);
     bias = new ArrayVec(vocab_size);
+    final FastRandom rng = new FastRandom(seed);
     for (int i = 0; i < vocab_size; i++) {
-      bias.set(i, initializeValue(SYM_DIM));
+      bias.set(i, initializeValue(rng, SYM_DIM));
       for (int j = 0; j < SYM_DIM; j++) {
-        symDecomp.set(i, j, initializeValue(SYM_DIM));
+        symDecomp.set(i, j, initializeValue(rng, SYM_DIM));
       }
       for (int j = 0; j < SKEWSYM_DIM; j++) {
-        skewsymDecomp.set(i, j, initializeValue(SKEWSYM_DIM));
+        skewsymDecomp.set(i, j, initializeValue(rng, SKEWSYM_DIM));
       }
     }
   }
 
-  private double initializeValue(int vec_size) {
-    return (Math.random() - 0.5) / vec_size;
+  private double initializeValue(FastRandom rng, int vec_size) {
+    return (rng.nextDouble() - 0.5) / vec_size;
+  }
+
+  private void initializeAccumulators() {
+    softMaxSym = ParameterMx.create(symDecomp.precision(), symDecomp.rows(), symDecomp.columns());
+    softMaxSkewsym = ParameterMx.create(skewsymDecomp.precision(), skewsymDecomp.rows(), skewsymDecomp.columns());
+    softMaxBias = new ArrayVec(bias.dim());
+    softMaxSym.fill(1);
+    softMaxSkewsym.fill(1);
+    VecTools.fill(softMaxBias, 1);
   }
 
   @Override
   public double likelihood() {
+    final int[] rowPtr = crc.rowPtr();
+    final int[] columns = crc.columns();
+    weights.prepare();
     double res = 0d;
     for (int i = 0; i < vocab_size; i++) {
-      final VecIterator nz = crcLeft.row(i).nonZeroes();
-      final Vec u_i = symDecomp.row(i);
-      final Vec v_i = skewsymDecomp.row(i);
-      while (nz.advance()) {
-        double xij = nz.value();
-        int j = nz.index();
-        double v = VecTools.multiply(u_i, symDecomp.row(j));
-        double u = VecTools.multiply(v_i, skewsymDecomp.row(j));
+      for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+        int j = columns[k];
+        double v = kernels.multiply(symDecomp, i, symDecomp, j);
+        double u = kernels.multiply(skewsymDecomp, i, skewsymDecomp, j);
         if (i > j) u *= -1d;
-        double diff = v + u - Math.log(1d + xij);
-        res += weightingFunc(xij) * diff * diff;
+        double diff = v + u - weights.log(k);
+        res += weights.weight(k) * diff * diff;
       }
     }
     return res;
@@ -83,14 +98,36 @@ public class DecomposingGloveModelFunction extends AbstractModelFunction {
 
   @Override
   public Mx getModelVectors() {
-    return symDecomp;
+    return symDecomp.toMx();
+  }
+
+  @Override
+  public Mx getEvalVectors() {
+    return symDecomp.toMx();
   }
 
   @Override
-  public void saveModel(String filepath) throws IOException {
+  public void saveModel(String filepath, ModelFormat format) throws IOException {
+    final Mx sym = symDecomp.toMx();
+    final Mx skewsym = skewsymDecomp.toMx();
+    if (format == ModelFormat.BINARY) {
+      final boolean singlePrecision = symDecomp.precision() == ParameterMx.Precision.FLOAT;
+      try (BinaryModelIO.Writer fout = new BinaryModelIO.Writer(Paths.get(filepath + "/eval_vectors.bin"), "DECOMP", vocab_size, singlePrecision)) {
+        fout.writeMx(sym);
+      }
+      try (BinaryModelIO.Writer fout = new BinaryModelIO.Writer(Paths.get(filepath + "/train_vectors.bin"), "DECOMP", vocab_size, singlePrecision)) {
+        fout.writeVec(bias);
+        fout.writeMx(sym);
+        fout.writeMx(skewsym);
+      }
+      Files.deleteIfExists(Paths.get(filepath + "/train_vectors.txt"));
+      Files.deleteIfExists(Paths.get(filepath + "/eval_vectors.txt"));
+      return;
+    }
+
     try (Writer fout = Files.newBufferedWriter(Paths.get(filepath + "/eval_vectors.txt"))){
       for (int i = 0; i < vocab_size; i++) {
-        VecIO.writeVec(fout, symDecomp.row(i));
+        VecIO.writeVec(fout, sym.row(i));
         fout.append('\n');
       }
     }
@@ -99,18 +136,70 @@ public class DecomposingGloveModelFunction extends AbstractModelFunction {
       VecIO.writeVec(fout, bias);
       fout.append('\n');
       for (int i = 0; i < vocab_size; i++) {
-        VecIO.writeVec(fout, symDecomp.row(i));
+        VecIO.writeVec(fout, sym.row(i));
         fout.append('\n');
       }
       for (int i = 0; i < vocab_size; i++) {
-        VecIO.writeVec(fout, skewsymDecomp.row(i));
+        VecIO.writeVec(fout, skewsym.row(i));
         fout.append('\n');
       }
     }
+    Files.deleteIfExists(Paths.get(filepath + "/train_vectors.bin"));
+    Files.deleteIfExists(Paths.get(filepath + "/eval_vectors.bin"));
+  }
+
+  // Blocks: state, bias, symDecomp, skewsymDecomp, then their accumulators in the same order.
+  @Override
+  Checkpoint snapshot() {
+    if (softMaxSym == null)
+      initializeAccumulators();
+    return new Checkpoint("DECOMP", vocab_size)
+        .add(checkpointState(symDecomp.precision()))
+        .add(bias)
+        .add(symDecomp)
+        .add(skewsymDecomp)
+        .add(softMaxBias)
+        .add(softMaxSym)
+        .add(softMaxSkewsym);
+  }
+
+  @Override
+  public void loadCheckpoint(Path path) throws IOException {
+    try (BinaryModelIO.Reader fin = new BinaryModelIO.Reader(path)) {
+      checkCheckpointType(path, "DECOMP", fin.getModelType());
+      final Vec state = fin.readVec();
+      final ParameterMx.Precision stored = checkpointPrecision(state);
+      restoreState(state);
+      bias = fin.readVec();
+      symDecomp = ParameterMx.copyOf(stored, fin.readMx());
+      skewsymDecomp = ParameterMx.copyOf(stored, fin.readMx());
+      softMaxBias = fin.readVec();
+      softMaxSym = ParameterMx.copyOf(stored, fin.readMx());
+      softMaxSkewsym = ParameterMx.copyOf(stored, fin.readMx());
+      SYM_DIM = symDecomp.columns();
+      SKEWSYM_DIM = skewsymDecomp.columns();
+    }
   }
 
   @Override
   public void loadModel(String filepath, int mode) throws IOException {
+    final Path binary = Paths.get(filepath + (mode == 0 ? "/train_vectors.bin" : "/eval_vectors.bin"));
+    if (Files.exists(binary)) {
+      try (BinaryModelIO.Reader fin = new BinaryModelIO.Reader(binary)) {
+        final ParameterMx.Precision stored = fin.isSinglePrecision() ? ParameterMx.Precision.FLOAT : ParameterMx.Precision.DOUBLE;
+        if (mode == 0) {
+          bias = fin.readVec();
+          symDecomp = ParameterMx.copyOf(stored, fin.readMx());
+          skewsymDecomp = ParameterMx.copyOf(stored, fin.readMx());
+          SKEWSYM_DIM = skewsymDecomp.columns();
+        } else if (mode == 1) {
+          symDecomp = ParameterMx.copyOf(stored, fin.readMx());
+        }
+        SYM_DIM = symDecomp.columns();
+      }
+      return;
+    }
+
     if (mode == 0) filepath += "/train_vectors.txt";
     else if (mode == 1) filepath += "/eval_vectors.txt";
 
@@ -118,14 +207,13 @@ public class DecomposingGloveModelFunction extends AbstractModelFunction {
       if (mode == 0) {
         fin.readLine();
         bias = VecIO.readVec(fin);
-        symDecomp = VecIO.readMx(fin, vocab_size);
-        SYM_DIM = symDecomp.row(0).dim();
-        skewsymDecomp = VecIO.readMx(fin, vocab_size);
-        skewsymDecomp.row(0).dim();
-        SKEWSYM_DIM = skewsymDecomp.dim();
+        symDecomp = ParameterMx.copyOf(precision, VecIO.readMx(fin, vocab_size));
+        SYM_DIM = symDecomp.columns();
+        skewsymDecomp = ParameterMx.copyOf(precision, VecIO.readMx(fin, vocab_size));
+        SKEWSYM_DIM = skewsymDecomp.columns();
       } else if (mode == 1) {
-        symDecomp = VecIO.readMx(fin, vocab_size);
-        SYM_DIM = symDecomp.row(0).dim();
+        symDecomp = ParameterMx.copyOf(precision, VecIO.readMx(fin, vocab_size));
+        SYM_DIM = symDecomp.columns();
       }
     }
     catch (FileNotFoundException e) {
@@ -133,91 +221,57 @@ public class DecomposingGloveModelFunction extends AbstractModelFunction {
     }
   }
 
-  private double weightingFunc(double x) {
-    return x < WEIGHTING_X_MAX ? Math.pow(x / WEIGHTING_X_MAX, WEIGHTING_ALPHA) : 1;
-  }
-
   @Override
   public void trainModel() {
     if (symDecomp == null) {
       initialize();
     }
-    final Mx softMaxSym = new VecBasedMx(symDecomp.rows(), symDecomp.columns());
-    final Mx softMaxSkewsym = new VecBasedMx(skewsymDecomp.rows(), skewsymDecomp.columns());
-    final Vec softMaxBias = new ArrayVec(bias.dim());
-    VecTools.fill(softMaxSym, 1);
-    VecTools.fill(softMaxSkewsym, 1);
-    VecTools.fill(softMaxBias, 1);
+    if (softMaxSym == null) {
+      initializeAccumulators();
+    }
 
-    final TIntArrayList order = new TIntArrayList(IntStream.range(0, crcLeft.rows()).toArray());
-    rng = new FastRandom();
-    for (int iter = 0; iter < TRAINING_ITERS; iter++) {
-      Interval.start();
-      order.shuffle(rng);
-      final double[] counter = new double[]{0, 0};
-      double score = IntStream.range(0, crcLeft.rows()).parallel().map(order::get).mapToDouble(i -> {
-        final VecIterator nz = crcLeft.row(i).nonZeroes();
-        final Vec sym_i = symDecomp.row(i);
-        final Vec skew_i = skewsymDecomp.row(i);
-        final Vec softMaxSym_i = softMaxSym.row(i);
-        final Vec softMaxSkew_i = softMaxSkewsym.row(i);
-        double totalScore = 0;
-        double totalWeight = 0;
-        double totalCount = 0;
-        while (nz.advance()) {
-          int j = nz.index();
-          final Vec sym_j = symDecomp.row(j);
-          final Vec skew_j = skewsymDecomp.row(j);
-          final Vec softMaxSym_j = softMaxSym.row(j);
-          final Vec softMaxSkew_j = softMaxSkewsym.row(j);
-          final double b_i = bias.get(i);
-          final double b_j = bias.get(j);
-
-          double asum = VecTools.multiply(sym_i, sym_j);
-          double bsum = VecTools.multiply(skew_i, skew_j);
-          final double X_ij = nz.value();
-          final int sign = i > j ? -1 : 1;
-          final double minfo = Math.log(X_ij);
-          final double diff = b_i + b_j + asum + sign * bsum - minfo;
-          final double weight = weightingFunc(X_ij);
-          final double biasStep = weight * diff;
-
-          update(sym_i, softMaxSym_i, sym_j, softMaxSym_j, diff * weight);
-          update(skew_i, softMaxSkew_i, skew_j, softMaxSkew_j, diff * weight * sign);
-          bias.adjust(i, -TRAINING_STEP_COEFF * biasStep / Math.sqrt(softMaxBias.get(i)));
-          softMaxBias.adjust(i, biasStep * biasStep);
-          bias.adjust(j, -TRAINING_STEP_COEFF * biasStep / Math.sqrt(softMaxBias.get(j)));
-          softMaxBias.adjust(j, biasStep * biasStep);
-
-          totalWeight += weight;
-          totalCount ++;
-          totalScore += 0.5 * weight * diff * diff;
-        }
+    weights.prepare();
+    final GradientHistogram gradients = this.gradients;
+    if (gradients != null)
+      gradients.reset();
+    final TrainingScheduler.EntryTrainer step = (i, j, k) -> {
+      final double b_i = bias.get(i);
+      final double b_j = bias.get(j);
 
-        synchronized (counter) {
-          counter[0] += totalWeight;
-          counter[1] += totalCount;
-        }
-        return totalScore;
-      }).sum();
+      double asum = kernels.multiply(symDecomp, i, symDecomp, j);
+      double bsum = kernels.multiply(skewsymDecomp, i, skewsymDecomp, j);
+      final int sign = i > j ? -1 : 1;
+      final double minfo = weights.log(k);
+      final double diff = b_i + b_j + asum + sign * bsum - minfo;
+      final double weight = weights.weight(k);
+      final double biasStep = weight * diff;
+      if (gradients != null)
+        gradients.record(biasStep);
 
-      Interval.stopAndPrint("Iteration: " + iter + " Score: " + (score / counter[1]));
+      kernels.adagrad(symDecomp, softMaxSym, i, symDecomp, softMaxSym, j, SYM_DIM, diff * weight, TRAINING_STEP_COEFF, G_DISCOUNT);
+      kernels.adagrad(skewsymDecomp, softMaxSkewsym, i, skewsymDecomp, softMaxSkewsym, j, SKEWSYM_DIM, diff * weight * sign, TRAINING_STEP_COEFF, G_DISCOUNT);
+      bias.adjust(i, -TRAINING_STEP_COEFF * biasStep / Math.sqrt(softMaxBias.get(i)));
+      softMaxBias.adjust(i, biasStep * biasStep);
+      bias.adjust(j, -TRAINING_STEP_COEFF * biasStep / Math.sqrt(softMaxBias.get(j)));
+      softMaxBias.adjust(j, biasStep * biasStep);
+      return 0.5 * weight * diff * diff;
+    };
+    try (TrainingScheduler scheduler = createScheduler(epochRandom(epoch), true, true);
+         PeriodicCheckpoints checkpoints = periodicCheckpoints()) {
+      final double count = scheduler.entries();
+      while (epoch < trainingIters) {
+        Interval.start();
+        final long start = System.nanoTime();
+        scheduler.setRandom(epochRandom(epoch));
+        final double score = scheduler.epoch(step);
+        Interval.stopAndPrint("Iteration: " + epoch + " Score: " + (score / count));
+        reportEpoch("DECOMP", scheduler, System.nanoTime() - start, score);
+        epoch++;
+        checkpoints.afterEpoch();
+      }
     }
   }
 
-  private void update(Vec x_i, Vec softMaxD_i, Vec x_j, Vec softMaxD_j, double step) {
-    IntStream.range(0, x_i.dim()).forEach(id -> {
-      final double dx_i = x_j.get(id) * step;
-      final double dx_j = x_i.get(id) * step;
-      final double maxL_i = softMaxD_i.get(id);
-      final double maxL_j = softMaxD_j.get(id);
-      x_i.adjust(id, -TRAINING_STEP_COEFF * dx_i / Math.sqrt(maxL_i));
-      x_j.adjust(id, -TRAINING_STEP_COEFF * dx_j / Math.sqrt(maxL_j));
-      softMaxD_i.set(id, maxL_i * G_DISCOUNT + MathTools.sqr(dx_i));
-      softMaxD_j.set(id, maxL_j * G_DISCOUNT + MathTools.sqr(dx_j));
-    });
-  }
-
   @Override
   public double value(Vec vec) {
     return likelihood();
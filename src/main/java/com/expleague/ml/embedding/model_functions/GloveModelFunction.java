@@ -3,76 +3,117 @@ package com.expleague.ml.embedding.model_functions;
 import com.expleague.commons.math.MathTools;
 import com.expleague.commons.math.vectors.Mx;
 import com.expleague.commons.math.vectors.Vec;
-import com.expleague.commons.math.vectors.VecIterator;
 import com.expleague.commons.math.vectors.VecTools;
 import com.expleague.commons.math.vectors.impl.mx.VecBasedMx;
 import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
+import com.expleague.commons.random.FastRandom;
 import com.expleague.commons.util.logging.Interval;
 import com.expleague.ml.embedding.exceptions.LoadingModelException;
+import com.expleague.ml.embedding.text_utils.BinaryModelIO;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import com.expleague.ml.embedding.text_utils.ModelFormat;
 import com.expleague.ml.embedding.text_utils.VecIO;
 import com.expleague.ml.embedding.text_utils.Vocabulary;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.stream.IntStream;
 
 public class GloveModelFunction extends AbstractModelFunction {
-  private final int TRAINING_ITERS;
   final private static double TRAINING_STEP_COEFF = 0.1;
 
-  private final static double WEIGHTING_X_MAX = 10;
-  private final static double WEIGHTING_ALPHA = 0.75;
   private int VECTOR_SIZE;
 
-  private Mx leftVectors;
-  private Mx rightVectors;
+  private ParameterMx leftVectors;
+  private ParameterMx rightVectors;
   private Vec biasLeft;
   private Vec biasRight;
+  // AdaGrad accumulators, kept between trainModel calls and in checkpoints
+  private ParameterMx softMaxLeft;
+  private ParameterMx softMaxRight;
+  private Vec softBiasLeft;
+  private Vec softBiasRight;
 
 
   public GloveModelFunction(Vocabulary voc, Mx coocc, int size, int iters) {
       super(voc, coocc);
       this.VECTOR_SIZE = size;
-      this.TRAINING_ITERS = iters;
+      this.trainingIters = iters;
+  }
+
+  public GloveModelFunction(Vocabulary voc, CsrCooccurences coocc, int size, int iters) {
+      super(voc, coocc);
+      this.VECTOR_SIZE = size;
+      this.trainingIters = iters;
   }
 
   private void initialize() {
-    leftVectors = new VecBasedMx(vocab_size, VECTOR_SIZE + 1);
-    rightVectors = new VecBasedMx(vocab_size, VECTOR_SIZE + 1);
+    leftVectors = ParameterMx.create(precision, vocab_size, VECTOR_SIZE + 1);
+    rightVectors = ParameterMx.create(precision, vocab_size, VECTOR_SIZE + 1);
     biasLeft = new ArrayVec(vocab_size);
     biasRight = new ArrayVec(vocab_size);
+    final FastRandom rng = new FastRandom(seed);
     for (int i = 0; i < vocab_size; i++) {
-      biasRight.set(i, initializeValue());
-      biasLeft.set(i, initializeValue());
+      biasRight.set(i, initializeValue(rng));
+      biasLeft.set(i, initializeValue(rng));
       for (int j = 0; j < VECTOR_SIZE; j++) {
-        leftVectors.set(i, j, initializeValue());
-        rightVectors.set(i, j, initializeValue());
+        leftVectors.set(i, j, initializeValue(rng));
+        rightVectors.set(i, j, initializeValue(rng));
       }
     }
   }
 
-  private double initializeValue() {
-    return (Math.random() - 0.5) / VECTOR_SIZE;
+  private double initializeValue(FastRandom rng) {
+    return (rng.nextDouble() - 0.5) / VECTOR_SIZE;
+  }
+
+  private void initializeAccumulators() {
+    softMaxLeft = ParameterMx.create(leftVectors.precision(), leftVectors.rows(), leftVectors.columns());
+    softMaxRight = ParameterMx.create(rightVectors.precision(), rightVectors.rows(), rightVectors.columns());
+    softBiasLeft = new ArrayVec(biasLeft.dim());
+    softBiasRight = new ArrayVec(biasRight.dim());
+    softMaxLeft.fill(1.);
+    softMaxRight.fill(1.);
+    VecTools.fill(softBiasLeft, 1.);
+    VecTools.fill(softBiasRight, 1.);
   }
 
   @Override
   public Mx getModelVectors() {
-    return leftVectors;
+    return leftVectors.toMx();
+  }
+
+  // left + right, a model loaded in mode 1 has them in leftVectors already
+  @Override
+  public Mx getEvalVectors() {
+    if (rightVectors == null)
+      return leftVectors.toMx();
+    return evalVectors(leftVectors.toMx(), rightVectors.toMx());
+  }
+
+  private Mx evalVectors(Mx left, Mx right) {
+    final Mx evalVectors = new VecBasedMx(vocab_size, left.columns());
+    for (int i = 0; i < vocab_size; i++) {
+      VecTools.assign(evalVectors.row(i), VecTools.sum(left.row(i), right.row(i)));
+    }
+    return evalVectors;
   }
 
   @Override
   public double likelihood() {
     long[] totalComponents = new long[]{0};
-    double total = IntStream.range(0, crcLeft.rows()).parallel().mapToDouble(i -> {
-      final VecIterator nz = crcLeft.row(i).nonZeroes();
+    final int[] rowPtr = crc.rowPtr();
+    final int[] columns = crc.columns();
+    weights.prepare();
+    double total = IntStream.range(0, crc.rows()).parallel().mapToDouble(i -> {
       double res = 0;
       int counter = 0;
-      while (nz.advance()) {
+      for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
         counter++;
-        final int j = nz.index();
-        final double X_ij = nz.value();
-        res += weightingFunc(X_ij) * MathTools.sqr(VecTools.multiply(leftVectors.row(i), rightVectors.row(j)) - Math.log(1d + X_ij));
+        final int j = columns[k];
+        res += weights.weight(k) * MathTools.sqr(kernels.multiply(leftVectors, i, rightVectors, j) - weights.log(k));
       }
       synchronized (totalComponents) {
         totalComponents[0] += counter;
@@ -83,7 +124,28 @@ public class GloveModelFunction extends AbstractModelFunction {
   }
 
   @Override
-  public void saveModel(String filepath) throws IOException {
+  public void saveModel(String filepath, ModelFormat format) throws IOException {
+    if (format == ModelFormat.BINARY) {
+      final boolean singlePrecision = leftVectors.precision() == ParameterMx.Precision.FLOAT;
+      final Mx left = leftVectors.toMx();
+      final Mx right = rightVectors.toMx();
+      try (BinaryModelIO.Writer fout = new BinaryModelIO.Writer(Paths.get(filepath + "/train_vectors.bin"), "GLOVE", vocab_size, singlePrecision)) {
+        fout.writeVec(biasLeft);
+        fout.writeMx(left);
+        fout.writeVec(biasRight);
+        fout.writeMx(right);
+      }
+      final Mx evalVectors = evalVectors(left, right);
+      try (BinaryModelIO.Writer fout = new BinaryModelIO.Writer(Paths.get(filepath + "/eval_vectors.bin"), "GLOVE", vocab_size, singlePrecision)) {
+        fout.writeMx(evalVectors);
+      }
+      Files.deleteIfExists(Paths.get(filepath + "/train_vectors.txt"));
+      Files.deleteIfExists(Paths.get(filepath + "/eval_vectors.txt"));
+      return;
+    }
+
+    final Mx left = leftVectors.toMx();
+    final Mx right = rightVectors.toMx();
     try (Writer fout = Files.newBufferedWriter(Paths.get(filepath + "/train_vectors.txt"))) {
       fout.append("GLOVE\n");
       //write bias
@@ -91,7 +153,7 @@ public class GloveModelFunction extends AbstractModelFunction {
       fout.append("\n");
       //write vectors
       for (int i = 0; i < vocab_size; i++) {
-        VecIO.writeVec(fout, leftVectors.row(i));
+        VecIO.writeVec(fout, left.row(i));
         fout.append('\n');
       }
       //write bias
@@ -99,105 +161,137 @@ public class GloveModelFunction extends AbstractModelFunction {
       fout.append("\n");
       //write vectors
       for (int i = 0; i < vocab_size; i++) {
-        VecIO.writeVec(fout, rightVectors.row(i));
+        VecIO.writeVec(fout, right.row(i));
         fout.append('\n');
       }
     }
 
     try (Writer fout = Files.newBufferedWriter(Paths.get(filepath + "/eval_vectors.txt"))) {
       for (int i = 0; i < vocab_size; i++) {
-        VecIO.writeVec(fout, VecTools.sum(leftVectors.row(i), rightVectors.row(i)));
+        VecIO.writeVec(fout, VecTools.sum(left.row(i), right.row(i)));
         fout.append('\n');
       }
     }
+    Files.deleteIfExists(Paths.get(filepath + "/train_vectors.bin"));
+    Files.deleteIfExists(Paths.get(filepath + "/eval_vectors.bin"));
+  }
+
+  // Blocks: state, then biasLeft, leftVectors, biasRight, rightVectors and their accumulators in the same order.
+  @Override
+  Checkpoint snapshot() {
+    if (softMaxLeft == null)
+      initializeAccumulators();
+    return new Checkpoint("GLOVE", vocab_size)
+        .add(checkpointState(leftVectors.precision()))
+        .add(biasLeft)
+        .add(leftVectors)
+        .add(biasRight)
+        .add(rightVectors)
+        .add(softBiasLeft)
+        .add(softMaxLeft)
+        .add(softBiasRight)
+        .add(softMaxRight);
+  }
+
+  @Override
+  public void loadCheckpoint(Path path) throws IOException {
+    try (BinaryModelIO.Reader fin = new BinaryModelIO.Reader(path)) {
+      checkCheckpointType(path, "GLOVE", fin.getModelType());
+      final Vec state = fin.readVec();
+      final ParameterMx.Precision stored = checkpointPrecision(state);
+      restoreState(state);
+      biasLeft = fin.readVec();
+      leftVectors = ParameterMx.copyOf(stored, fin.readMx());
+      biasRight = fin.readVec();
+      rightVectors = ParameterMx.copyOf(stored, fin.readMx());
+      softBiasLeft = fin.readVec();
+      softMaxLeft = ParameterMx.copyOf(stored, fin.readMx());
+      softBiasRight = fin.readVec();
+      softMaxRight = ParameterMx.copyOf(stored, fin.readMx());
+      VECTOR_SIZE = leftVectors.columns() - 1;
+    }
   }
 
   @Override
   public void loadModel(String filepath, int mode) throws IOException {
+    final Path binary = Paths.get(filepath + (mode == 0 ? "/train_vectors.bin" : "/eval_vectors.bin"));
+    if (Files.exists(binary)) {
+      try (BinaryModelIO.Reader fin = new BinaryModelIO.Reader(binary)) {
+        final ParameterMx.Precision stored = fin.isSinglePrecision() ? ParameterMx.Precision.FLOAT : ParameterMx.Precision.DOUBLE;
+        if (mode == 0) {
+          biasLeft = fin.readVec();
+          leftVectors = ParameterMx.copyOf(stored, fin.readMx());
+          biasRight = fin.readVec();
+          rightVectors = ParameterMx.copyOf(stored, fin.readMx());
+        } else if (mode == 1) {
+          leftVectors = ParameterMx.copyOf(stored, fin.readMx());
+        }
+        VECTOR_SIZE = leftVectors.columns();
+      }
+      return;
+    }
+
     if (mode == 0) filepath += "/train_vectors.txt";
     else if (mode == 1) filepath += "/eval_vectors.txt";
     try (BufferedReader fin = new BufferedReader(new FileReader(new File(filepath)))) {
       if (mode == 0) {
         fin.readLine();
         biasLeft = VecIO.readVec(fin);
-        leftVectors = VecIO.readMx(fin, vocab_size);
+        leftVectors = ParameterMx.copyOf(precision, VecIO.readMx(fin, vocab_size));
         biasRight = VecIO.readVec(fin);
-        rightVectors = VecIO.readMx(fin, vocab_size);
+        rightVectors = ParameterMx.copyOf(precision, VecIO.readMx(fin, vocab_size));
       } else if (mode == 1){
-        leftVectors = VecIO.readMx(fin, vocab_size);
+        leftVectors = ParameterMx.copyOf(precision, VecIO.readMx(fin, vocab_size));
       }
-      VECTOR_SIZE = leftVectors.row(0).dim();
+      VECTOR_SIZE = leftVectors.columns();
     }
     catch (FileNotFoundException e) {
       throw new LoadingModelException("Couldn't find vectors file to load the model from.");
     }
   }
 
-  private double weightingFunc(double x) {
-    return x < WEIGHTING_X_MAX ? Math.pow((x / WEIGHTING_X_MAX), WEIGHTING_ALPHA) : 1;
-  }
-
   @Override
   public void trainModel() {
     if (leftVectors == null) {
         initialize();
     }
+    if (softMaxLeft == null) {
+        initializeAccumulators();
+    }
 
-    final Mx softMaxLeft = new VecBasedMx(leftVectors.rows(), leftVectors.columns());
-    final Mx softMaxRight = new VecBasedMx(rightVectors.rows(), rightVectors.columns());
-    final Vec softBiasLeft = new ArrayVec(biasLeft.dim());
-    final Vec softBiasRight = new ArrayVec(biasRight.dim());
-    VecTools.fill(softMaxLeft, 1.);
-    VecTools.fill(softMaxRight, 1.);
-    VecTools.fill(softBiasLeft, 1.);
-    VecTools.fill(softBiasRight, 1.);
+    weights.prepare();
+    final GradientHistogram gradients = this.gradients;
+    if (gradients != null)
+      gradients.reset();
+    final TrainingScheduler.EntryTrainer step = (i, j, k) -> {
+      final double asum = kernels.multiply(leftVectors, i, rightVectors, j);
+      final double diff = biasLeft.get(i) + biasRight.get(j) + asum - weights.log(k);
+      final double weight = weights.weight(k);
+      final double fdiff = TRAINING_STEP_COEFF * diff * weight;
+      if (gradients != null)
+        gradients.record(weight * diff);
 
-    for (int iter = 0; iter < TRAINING_ITERS; iter++) {
-      Interval.start();
-      double[] counter = new double[]{0, 0};
-      double score = IntStream.range(0, vocab_size).parallel().mapToDouble(i -> {
-        final VecIterator nz = crcLeft.row(i).nonZeroes();
-        final Vec left = leftVectors.row(i);
-        final Vec softMaxL = softMaxLeft.row(i);
-        double totalScore = 0;
-        double totalCount = 0;
-        double totalWeight = 0;
-        while (nz.advance()) {
-          final int j = nz.index();
-          final Vec right = rightVectors.row(j);
-          final Vec softMaxR = softMaxRight.row(j);
-          final double X_ij = nz.value();
-          final double asum = VecTools.multiply(left, right);
-          final double diff = biasLeft.get(i) + biasRight.get(j) + asum - Math.log(X_ij);
-          final double weight = weightingFunc(X_ij);
-          final double fdiff = TRAINING_STEP_COEFF * diff * weight;
-
-          totalWeight += weight;
-          totalScore += 0.5 * weight * MathTools.sqr(diff);
-
-          IntStream.range(0, VECTOR_SIZE).forEach(id -> {
-            final double dL = fdiff * right.get(id);
-            final double dR = fdiff * left.get(id);
-            left.adjust(id, -dL / Math.sqrt(softMaxL.get(id)));
-            right.adjust(id, -dR / Math.sqrt(softMaxR.get(id)));
-            softMaxL.adjust(id, dL * dL);
-            softMaxR.adjust(id, dR * dR);
-          });
-
-          biasLeft.adjust(i, -fdiff / Math.sqrt(softBiasLeft.get(i)));
-          biasRight.adjust(j, -fdiff / Math.sqrt(softBiasRight.get(j)));
-          softBiasLeft.adjust(i, MathTools.sqr(fdiff));
-          softBiasRight.adjust(j, MathTools.sqr(fdiff));
-          totalCount++;
-        }
-        synchronized (counter) {
-          counter[0] += totalWeight;
-          counter[1] += totalCount;
-        }
-        return totalScore;
-      }).sum();
+      kernels.adagrad(leftVectors, softMaxLeft, i, rightVectors, softMaxRight, j, VECTOR_SIZE, fdiff, 1, 1);
 
-      Interval.stopAndPrint("Iteration " + iter + ", Score " + score / counter[1] + ", Total Score " + score + ", Count " + counter[1]);
+      biasLeft.adjust(i, -fdiff / Math.sqrt(softBiasLeft.get(i)));
+      biasRight.adjust(j, -fdiff / Math.sqrt(softBiasRight.get(j)));
+      softBiasLeft.adjust(i, MathTools.sqr(fdiff));
+      softBiasRight.adjust(j, MathTools.sqr(fdiff));
+      return 0.5 * weight * MathTools.sqr(diff);
+    };
+    try (TrainingScheduler scheduler = createScheduler(epochRandom(epoch), false, false);
+         PeriodicCheckpoints checkpoints = periodicCheckpoints()) {
+      final double count = scheduler.entries();
+      while (epoch < trainingIters) {
+        Interval.start();
+        final long start = System.nanoTime();
+        scheduler.setRandom(epochRandom(epoch));
+        final double score = scheduler.epoch(step);
+        Interval.stopAndPrint("Iteration " + epoch + ", Score " + score / count + ", Total Score " + score + ", Count " + count);
+        reportEpoch("GLOVE", scheduler, System.nanoTime() - start, score);
+        epoch++;
+        checkpoints.afterEpoch();
+      }
     }
   }
 
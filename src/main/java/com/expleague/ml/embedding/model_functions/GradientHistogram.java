@@ -0,0 +1,106 @@
+package com.expleague.ml.embedding.model_functions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Distribution of gradient magnitudes over an epoch. Every worker thread counts into its own slot,
+// buckets are binary orders of magnitude cut into 8 by the leading mantissa bits, so a quantile
+// is off by at most ~9%. Slots are read and reset between epochs, when the workers are idle.
+class GradientHistogram {
+    private static final int MIN_EXPONENT = -40;
+    private static final int MAX_EXPONENT = 20;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT + 1) << SUB_BITS;
+
+    private static class Slot {
+        final long[] counts = new long[BUCKETS + 1];
+        long n;
+        double sum;
+        double max;
+    }
+
+    private final List<Slot> slots = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(() -> {
+        final Slot created = new Slot();
+        slots.add(created);
+        return created;
+    });
+
+    void record(double gradient) {
+        final double abs = Math.abs(gradient);
+        final Slot local = slot.get();
+        local.counts[bucket(abs)]++;
+        local.n++;
+        local.sum += abs;
+        if (abs > local.max)
+            local.max = abs;
+    }
+
+    // 0 for zeroes and values below 2^MIN_EXPONENT, then the log-scale buckets, values above the range go to the last one
+    private static int bucket(double abs) {
+        final int exponent = Math.getExponent(abs);
+        if (abs == 0 || exponent < MIN_EXPONENT)
+            return 0;
+        if (exponent > MAX_EXPONENT || Double.isNaN(abs))
+            return BUCKETS;
+        final int sub = (int) (Double.doubleToRawLongBits(abs) >>> (52 - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return 1 + ((exponent - MIN_EXPONENT) << SUB_BITS) + sub;
+    }
+
+    // middle of the bucket
+    private static double value(int bucket) {
+        if (bucket == 0)
+            return 0;
+        final int b = Math.min(bucket, BUCKETS) - 1;
+        final int exponent = (b >> SUB_BITS) + MIN_EXPONENT;
+        final double sub = (b & ((1 << SUB_BITS) - 1)) + 0.5;
+        return Math.scalb(1 + sub / (1 << SUB_BITS), exponent);
+    }
+
+    long count() {
+        long n = 0;
+        for (Slot s : slots)
+            n += s.n;
+        return n;
+    }
+
+    double mean() {
+        double sum = 0;
+        for (Slot s : slots)
+            sum += s.sum;
+        final long n = count();
+        return n == 0 ? 0 : sum / n;
+    }
+
+    double max() {
+        double max = 0;
+        for (Slot s : slots)
+            max = Math.max(max, s.max);
+        return max;
+    }
+
+    double quantile(double q) {
+        final long n = count();
+        if (n == 0)
+            return 0;
+        final long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int b = 0; b <= BUCKETS; b++) {
+            for (Slot s : slots)
+                seen += s.counts[b];
+            if (seen >= rank)
+                return Math.min(value(b), max());
+        }
+        return max();
+    }
+
+    void reset() {
+        for (Slot s : slots) {
+            Arrays.fill(s.counts, 0);
+            s.n = 0;
+            s.sum = 0;
+            s.max = 0;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.expleague.ml.embedding.model_functions;
+
+// Inner loops of the trainers over the raw arrays of ParameterMx rows.
+// SCALAR is the plain loop, UNROLLED keeps four independent partial sums in the dot product
+// and updates four coordinates per step from locals loaded up front, which lets the JIT keep more work in flight.
+// The AdaGrad update gives the same numbers in both, only the dot product sums in a different order.
+public abstract class Kernels {
+    public enum Type {
+        SCALAR, UNROLLED;
+
+        public Kernels create() {
+            return this == SCALAR ? new Scalar() : new Unrolled();
+        }
+    }
+
+    // Scalar product of row i of x and row j of y.
+    public double multiply(ParameterMx x, int i, ParameterMx y, int j) {
+        final int n = Math.min(x.columns, y.columns);
+        if (x instanceof ParameterMx.DoubleMx && y instanceof ParameterMx.DoubleMx)
+            return dot(((ParameterMx.DoubleMx) x).data, i * x.columns, ((ParameterMx.DoubleMx) y).data, j * y.columns, n);
+        if (x instanceof ParameterMx.FloatMx && y instanceof ParameterMx.FloatMx)
+            return dot(((ParameterMx.FloatMx) x).data, i * x.columns, ((ParameterMx.FloatMx) y).data, j * y.columns, n);
+        double result = 0;
+        for (int k = 0; k < n; k++)
+            result += x.get(i, k) * y.get(j, k);
+        return result;
+    }
+
+    // AdaGrad step on the pair of rows x_i, y_j for the loss gradient step * (y_j, x_i), first n coordinates:
+    //   dx = step * y_j, dy = step * x_i,
+    //   x_i -= rate * dx / sqrt(gx_i), y_j -= rate * dy / sqrt(gy_j),
+    //   gx_i = gx_i * discount + dx^2, gy_j = gy_j * discount + dy^2.
+    // Both gradients are taken from the values before the step, so x and y may be the same row.
+    public void adagrad(ParameterMx x, ParameterMx gx, int i, ParameterMx y, ParameterMx gy, int j, int n,
+                        double step, double rate, double discount) {
+        if (x instanceof ParameterMx.DoubleMx && y instanceof ParameterMx.DoubleMx
+            && gx instanceof ParameterMx.DoubleMx && gy instanceof ParameterMx.DoubleMx) {
+            adagrad(((ParameterMx.DoubleMx) x).data, ((ParameterMx.DoubleMx) gx).data, i * x.columns,
+                ((ParameterMx.DoubleMx) y).data, ((ParameterMx.DoubleMx) gy).data, j * y.columns, n, step, rate, discount);
+            return;
+        }
+        if (x instanceof ParameterMx.FloatMx && y instanceof ParameterMx.FloatMx
+            && gx instanceof ParameterMx.FloatMx && gy instanceof ParameterMx.FloatMx) {
+            adagrad(((ParameterMx.FloatMx) x).data, ((ParameterMx.FloatMx) gx).data, i * x.columns,
+                ((ParameterMx.FloatMx) y).data, ((ParameterMx.FloatMx) gy).data, j * y.columns, n, step, rate, discount);
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            final double dx = step * y.get(j, k);
+            final double dy = step * x.get(i, k);
+            final double gxk = gx.get(i, k);
+            final double gyk = gy.get(j, k);
+            x.adjust(i, k, -rate * dx / Math.sqrt(gxk));
+            y.adjust(j, k, -rate * dy / Math.sqrt(gyk));
+            gx.set(i, k, gxk * discount + dx * dx);
+            gy.set(j, k, gyk * discount + dy * dy);
+        }
+    }
+
+    abstract double dot(double[] x, int xOffset, double[] y, int yOffset, int n);
+
+    abstract double dot(float[] x, int xOffset, float[] y, int yOffset, int n);
+
+    // One coordinate, the scalar loop and the tails of the unrolled one.
+    static void adagrad(double[] x, double[] gx, int xo, double[] y, double[] gy, int yo,
+                        double step, double rate, double discount) {
+        final double dx = step * y[yo];
+        final double dy = step * x[xo];
+        final double gxk = gx[xo];
+        final double gyk = gy[yo];
+        x[xo] -= rate * dx / Math.sqrt(gxk);
+        y[yo] -= rate * dy / Math.sqrt(gyk);
+        gx[xo] = gxk * discount + dx * dx;
+        gy[yo] = gyk * discount + dy * dy;
+    }
+
+    static void adagrad(float[] x, float[] gx, int xo, float[] y, float[] gy, int yo,
+                        double step, double rate, double discount) {
+        final double dx = step * y[yo];
+        final double dy = step * x[xo];
+        final double gxk = gx[xo];
+        final double gyk = gy[yo];
+        x[xo] -= rate * dx / Math.sqrt(gxk);
+        y[yo] -= rate * dy / Math.sqrt(gyk);
+        gx[xo] = (float) (gxk * discount + dx * dx);
+        gy[yo] = (float) (gyk * discount + dy * dy);
+    }
+
+    abstract void adagrad(double[] x, double[] gx, int xOffset, double[] y, double[] gy, int yOffset, int n,
+                          double step, double rate, double discount);
+
+    abstract void adagrad(float[] x, float[] gx, int xOffset, float[] y, float[] gy, int yOffset, int n,
+                          double step, double rate, double discount);
+
+    static class Scalar extends Kernels {
+        @Override
+        double dot(double[] x, int xOffset, double[] y, int yOffset, int n) {
+            double result = 0;
+            for (int k = 0; k < n; k++)
+                result += x[xOffset + k] * y[yOffset + k];
+            return result;
+        }
+
+        @Override
+        double dot(float[] x, int xOffset, float[] y, int yOffset, int n) {
+            double result = 0;
+            for (int k = 0; k < n; k++)
+                result += (double) x[xOffset + k] * y[yOffset + k];
+            return result;
+        }
+
+        @Override
+        void adagrad(double[] x, double[] gx, int xOffset, double[] y, double[] gy, int yOffset, int n,
+                     double step, double rate, double discount) {
+            for (int k = 0; k < n; k++)
+                adagrad(x, gx, xOffset + k, y, gy, yOffset + k, step, rate, discount);
+        }
+
+        @Override
+        void adagrad(float[] x, float[] gx, int xOffset, float[] y, float[] gy, int yOffset, int n,
+                     double step, double rate, double discount) {
+            for (int k = 0; k < n; k++)
+                adagrad(x, gx, xOffset + k, y, gy, yOffset + k, step, rate, discount);
+        }
+    }
+
+    static class Unrolled extends Kernels {
+        @Override
+        double dot(double[] x, int xOffset, double[] y, int yOffset, int n) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int k = 0;
+            for (; k + 3 < n; k += 4) {
+                s0 += x[xOffset + k] * y[yOffset + k];
+                s1 += x[xOffset + k + 1] * y[yOffset + k + 1];
+                s2 += x[xOffset + k + 2] * y[yOffset + k + 2];
+                s3 += x[xOffset + k + 3] * y[yOffset + k + 3];
+            }
+            for (; k < n; k++)
+                s0 += x[xOffset + k] * y[yOffset + k];
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        double dot(float[] x, int xOffset, float[] y, int yOffset, int n) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int k = 0;
+            for (; k + 3 < n; k += 4) {
+                s0 += (double) x[xOffset + k] * y[yOffset + k];
+                s1 += (double) x[xOffset + k + 1] * y[yOffset + k + 1];
+                s2 += (double) x[xOffset + k + 2] * y[yOffset + k + 2];
+                s3 += (double) x[xOffset + k + 3] * y[yOffset + k + 3];
+            }
+            for (; k < n; k++)
+                s0 += (double) x[xOffset + k] * y[yOffset + k];
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        // Four coordinates per step: all loads first into locals, then the arithmetic, then the stores, so the
+        // coordinates are independent for the JIT. A row paired with itself goes coordinate by coordinate,
+        // there the second step has to see the first one.
+        @Override
+        void adagrad(double[] x, double[] gx, int xOffset, double[] y, double[] gy, int yOffset, int n,
+                     double step, double rate, double discount) {
+            if (xOffset == yOffset && (x == y || gx == gy)) {
+                for (int k = 0; k < n; k++)
+                    adagrad(x, gx, xOffset + k, y, gy, yOffset + k, step, rate, discount);
+                return;
+            }
+            int k = 0;
+            for (; k + 3 < n; k += 4) {
+                final int a = xOffset + k;
+                final int b = yOffset + k;
+                final double x0 = x[a], x1 = x[a + 1], x2 = x[a + 2], x3 = x[a + 3];
+                final double y0 = y[b], y1 = y[b + 1], y2 = y[b + 2], y3 = y[b + 3];
+                final double gx0 = gx[a], gx1 = gx[a + 1], gx2 = gx[a + 2], gx3 = gx[a + 3];
+                final double gy0 = gy[b], gy1 = gy[b + 1], gy2 = gy[b + 2], gy3 = gy[b + 3];
+                final double dx0 = step * y0, dx1 = step * y1, dx2 = step * y2, dx3 = step * y3;
+                final double dy0 = step * x0, dy1 = step * x1, dy2 = step * x2, dy3 = step * x3;
+                x[a] = x0 - rate * dx0 / Math.sqrt(gx0);
+                x[a + 1] = x1 - rate * dx1 / Math.sqrt(gx1);
+                x[a + 2] = x2 - rate * dx2 / Math.sqrt(gx2);
+                x[a + 3] = x3 - rate * dx3 / Math.sqrt(gx3);
+                y[b] = y0 - rate * dy0 / Math.sqrt(gy0);
+                y[b + 1] = y1 - rate * dy1 / Math.sqrt(gy1);
+                y[b + 2] = y2 - rate * dy2 / Math.sqrt(gy2);
+                y[b + 3] = y3 - rate * dy3 / Math.sqrt(gy3);
+                gx[a] = gx0 * discount + dx0 * dx0;
+                gx[a + 1] = gx1 * discount + dx1 * dx1;
+                gx[a + 2] = gx2 * discount + dx2 * dx2;
+                gx[a + 3] = gx3 * discount + dx3 * dx3;
+                gy[b] = gy0 * discount + dy0 * dy0;
+                gy[b + 1] = gy1 * discount + dy1 * dy1;
+                gy[b + 2] = gy2 * discount + dy2 * dy2;
+                gy[b + 3] = gy3 * discount + dy3 * dy3;
+            }
+            for (; k < n; k++)
+                adagrad(x, gx, xOffset + k, y, gy, yOffset + k, step, rate, discount);
+        }
+
+        @Override
+        void adagrad(float[] x, float[] gx, int xOffset, float[] y, float[] gy, int yOffset, int n,
+                     double step, double rate, double discount) {
+            if (xOffset == yOffset && (x == y || gx == gy)) {
+                for (int k = 0; k < n; k++)
+                    adagrad(x, gx, xOffset + k, y, gy, yOffset + k, step, rate, discount);
+                return;
+            }
+            int k = 0;
+            for (; k + 3 < n; k += 4) {
+                final int a = xOffset + k;
+                final int b = yOffset + k;
+                final double x0 = x[a], x1 = x[a + 1], x2 = x[a + 2], x3 = x[a + 3];
+                final double y0 = y[b], y1 = y[b + 1], y2 = y[b + 2], y3 = y[b + 3];
+                final double gx0 = gx[a], gx1 = gx[a + 1], gx2 = gx[a + 2], gx3 = gx[a + 3];
+                final double gy0 = gy[b], gy1 = gy[b + 1], gy2 = gy[b + 2], gy3 = gy[b + 3];
+                final double dx0 = step * y0, dx1 = step * y1, dx2 = step * y2, dx3 = step * y3;
+                final double dy0 = step * x0, dy1 = step * x1, dy2 = step * x2, dy3 = step * x3;
+                x[a] = (float) (x0 - rate * dx0 / Math.sqrt(gx0));
+                x[a + 1] = (float) (x1 - rate * dx1 / Math.sqrt(gx1));
+                x[a + 2] = (float) (x2 - rate * dx2 / Math.sqrt(gx2));
+                x[a + 3] = (float) (x3 - rate * dx3 / Math.sqrt(gx3));
+                y[b] = (float) (y0 - rate * dy0 / Math.sqrt(gy0));
+                y[b + 1] = (float) (y1 - rate * dy1 / Math.sqrt(gy1));
+                y[b + 2] = (float) (y2 - rate * dy2 / Math.sqrt(gy2));
+                y[b + 3] = (float) (y3 - rate * dy3 / Math.sqrt(gy3));
+                gx[a] = (float) (gx0 * discount + dx0 * dx0);
+                gx[a + 1] = (float) (gx1 * discount + dx1 * dx1);
+                gx[a + 2] = (float) (gx2 * discount + dx2 * dx2);
+                gx[a + 3] = (float) (gx3 * discount + dx3 * dx3);
+                gy[b] = (float) (gy0 * discount + dy0 * dy0);
+                gy[b + 1] = (float) (gy1 * discount + dy1 * dy1);
+                gy[b + 2] = (float) (gy2 * discount + dy2 * dy2);
+                gy[b + 3] = (float) (gy3 * discount + dy3 * dy3);
+            }
+            for (; k < n; k++)
+                adagrad(x, gx, xOffset + k, y, gy, yOffset + k, step, rate, discount);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.expleague.ml.embedding.model_functions;
 
 import com.expleague.commons.math.vectors.Mx;
 import com.expleague.ml.embedding.ModelParameters;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
 import com.expleague.ml.embedding.text_utils.Vocabulary;
 
 public class ModelChooser {
@@ -10,6 +11,20 @@ public class ModelChooser {
     // DECOMP -> DecomposingGloveModel
 
     public static AbstractModelFunction model(ModelParameters modelParameters, Vocabulary vocab, Mx crcs) {
+        return model(modelParameters, vocab, crcs == null ? null : CsrCooccurences.fromMx(crcs));
+    }
+
+    public static AbstractModelFunction model(ModelParameters modelParameters, Vocabulary vocab, CsrCooccurences crcs) {
+        return create(modelParameters, vocab, crcs)
+                .setPrecomputeWeights(modelParameters.isPrecomputeWeights())
+                .setPrecision(modelParameters.getPrecision())
+                .setKernels(modelParameters.getKernels())
+                .setScheduler(modelParameters.getScheduler())
+                .setThreads(modelParameters.getThreads())
+                .setSeed(modelParameters.getSeed());
+    }
+
+    private static AbstractModelFunction create(ModelParameters modelParameters, Vocabulary vocab, CsrCooccurences crcs) {
         switch (modelParameters.getModelName()) {
             case "GLOVE": return new GloveModelFunction(vocab, crcs,
                     modelParameters.getGloveVecSize(), modelParameters.getTrainingIters());
@@ -0,0 +1,172 @@
+package com.expleague.ml.embedding.model_functions;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.impl.mx.VecBasedMx;
+import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
+
+import java.util.Arrays;
+
+// Dense row-major storage of trained parameters and their AdaGrad accumulators.
+// The training loops address it by (row, column) only, so the element type is a storage choice:
+// FLOAT halves the memory and the traffic of the SGD loops, arithmetic is still done in double.
+public abstract class ParameterMx {
+    public enum Precision {
+        DOUBLE, FLOAT
+    }
+
+    final int rows;
+    final int columns;
+
+    ParameterMx(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    public static ParameterMx create(Precision precision, int rows, int columns) {
+        return precision == Precision.FLOAT ? new FloatMx(rows, columns) : new DoubleMx(rows, columns);
+    }
+
+    public static ParameterMx copyOf(Precision precision, Mx mx) {
+        final ParameterMx result = create(precision, mx.rows(), mx.columns());
+        for (int i = 0; i < mx.rows(); i++) {
+            for (int j = 0; j < mx.columns(); j++)
+                result.set(i, j, mx.get(i, j));
+        }
+        return result;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public abstract Precision precision();
+
+    public abstract double get(int i, int j);
+
+    public abstract void set(int i, int j, double value);
+
+    public abstract void adjust(int i, int j, double increment);
+
+    public abstract void fill(double value);
+
+    public abstract long memorySize();
+
+    // Detached copy of the same precision, a single array copy.
+    public abstract ParameterMx copy();
+
+    // Double precision view for evaluation and saving, shares the storage when it is double already.
+    public abstract Mx toMx();
+
+    static class DoubleMx extends ParameterMx {
+        final double[] data;
+
+        DoubleMx(int rows, int columns) {
+            this(rows, columns, new double[rows * columns]);
+        }
+
+        private DoubleMx(int rows, int columns, double[] data) {
+            super(rows, columns);
+            this.data = data;
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.DOUBLE;
+        }
+
+        @Override
+        public double get(int i, int j) {
+            return data[i * columns + j];
+        }
+
+        @Override
+        public void set(int i, int j, double value) {
+            data[i * columns + j] = value;
+        }
+
+        @Override
+        public void adjust(int i, int j, double increment) {
+            data[i * columns + j] += increment;
+        }
+
+        @Override
+        public void fill(double value) {
+            Arrays.fill(data, value);
+        }
+
+        @Override
+        public long memorySize() {
+            return 8L * data.length;
+        }
+
+        @Override
+        public ParameterMx copy() {
+            return new DoubleMx(rows, columns, data.clone());
+        }
+
+        @Override
+        public Mx toMx() {
+            return new VecBasedMx(columns, new ArrayVec(data));
+        }
+    }
+
+    static class FloatMx extends ParameterMx {
+        final float[] data;
+
+        FloatMx(int rows, int columns) {
+            this(rows, columns, new float[rows * columns]);
+        }
+
+        private FloatMx(int rows, int columns, float[] data) {
+            super(rows, columns);
+            this.data = data;
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.FLOAT;
+        }
+
+        @Override
+        public double get(int i, int j) {
+            return data[i * columns + j];
+        }
+
+        @Override
+        public void set(int i, int j, double value) {
+            data[i * columns + j] = (float) value;
+        }
+
+        @Override
+        public void adjust(int i, int j, double increment) {
+            data[i * columns + j] += increment;
+        }
+
+        @Override
+        public void fill(double value) {
+            Arrays.fill(data, (float) value);
+        }
+
+        @Override
+        public long memorySize() {
+            return 4L * data.length;
+        }
+
+        @Override
+        public ParameterMx copy() {
+            return new FloatMx(rows, columns, data.clone());
+        }
+
+        @Override
+        public Mx toMx() {
+            final double[] copy = new double[data.length];
+            for (int k = 0; k < data.length; k++)
+                copy[k] = data[k];
+            return new VecBasedMx(columns, new ArrayVec(copy));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.expleague.ml.embedding.model_functions;
+
+import com.expleague.ml.embedding.exceptions.TrainingException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Checkpoints of a running training every N epochs and/or every T minutes, checked after each epoch.
+// The training thread only takes a snapshot, a single background thread writes it to a temporary file
+// and renames it over the checkpoint, so the file on disk is always a complete one. A checkpoint that
+// falls due while the previous one is still being written is skipped rather than queued.
+// Time spent on snapshots (the only stall of training) and on writes is reported when training ends.
+class PeriodicCheckpoints implements AutoCloseable {
+    private final AbstractModelFunction function;
+    private final Path path;
+    private final int everyEpochs;
+    private final long everyNanos;
+    private final ExecutorService writer;
+    private Future<?> pending;
+
+    private final long started = System.nanoTime();
+    private long lastCheckpoint = started;
+    private long snapshotNanos = 0;
+    private volatile long writeNanos = 0;
+    private int written = 0;
+    private int skipped = 0;
+
+    PeriodicCheckpoints(AbstractModelFunction function, Path path, int everyEpochs, int everyMinutes) {
+        this.function = function;
+        this.path = path;
+        this.everyEpochs = everyEpochs;
+        this.everyNanos = everyMinutes * 60_000_000_000L;
+        this.writer = path == null ? null : Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Called by the training loop between epochs, when no worker touches the parameters.
+    void afterEpoch() {
+        if (writer == null)
+            return;
+        final long now = System.nanoTime();
+        final int epoch = function.getEpoch();
+        final boolean due = (everyEpochs > 0 && epoch % everyEpochs == 0)
+            || (everyNanos > 0 && now - lastCheckpoint >= everyNanos);
+        if (!due)
+            return;
+        if (pending != null && !pending.isDone()) {
+            skipped++;
+            System.out.println("Checkpoint after epoch " + epoch + " skipped, the previous one is still being written.");
+            return;
+        }
+        checkWritten();
+
+        final Checkpoint checkpoint = function.snapshot();
+        final long snapshot = System.nanoTime() - now;
+        snapshotNanos += snapshot;
+        lastCheckpoint = now;
+        pending = writer.submit(() -> {
+            final long start = System.nanoTime();
+            final Path temporary = Paths.get(path + ".tmp");
+            try {
+                checkpoint.write(temporary);
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new TrainingException("Couldn't write checkpoint " + path + ". " + e.getMessage());
+            }
+            final long write = System.nanoTime() - start;
+            writeNanos += write;
+            System.out.println("Checkpoint after epoch " + epoch + " written to " + path + ": snapshot of "
+                + (checkpoint.memorySize() >> 20) + " MB took " + millis(snapshot) + " ms, writing " + millis(write) + " ms");
+        });
+        written++;
+    }
+
+    private void checkWritten() {
+        if (pending == null)
+            return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TrainingException("Interrupted while writing checkpoint " + path + ".");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new TrainingException(cause.getMessage());
+        }
+        pending = null;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    // Waits for the last write.
+    @Override
+    public void close() {
+        if (writer == null)
+            return;
+        try {
+            checkWritten();
+        } finally {
+            writer.shutdown();
+        }
+        final long total = System.nanoTime() - started;
+        System.out.println("Checkpoints: " + written + " written, " + skipped + " skipped. Training stalled for "
+            + millis(snapshotNanos) + " ms of " + millis(total) + " ms (" + String.format("%.2f", 100. * snapshotNanos / total)
+            + "%), writing took " + millis(writeNanos) + " ms in background.");
+    }
+}
@@ -0,0 +1,361 @@
+package com.expleague.ml.embedding.model_functions;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.exceptions.TrainingException;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+// Decides in which order and on which threads the non-zeroes of X are visited during an epoch.
+// Updates are lock-free (Hogwild): workers write shared parameters without synchronization.
+public abstract class TrainingScheduler implements AutoCloseable {
+    public enum Type {
+        // every non-zero is a task, the whole list is shuffled each epoch and cut into one chunk per thread
+        ENTRIES,
+        // every row is a task, the order of rows is either fixed or shuffled each epoch
+        ROWS,
+        // DSGD: vocabulary is split into blocks, tasks running at the same time never share a row or a column block,
+        // so there are no races and the result depends only on the seed
+        STRATIFIED
+    }
+
+    // SGD step on the non-zero k = (i, j), returns its contribution to the score
+    public interface EntryTrainer {
+        double train(int i, int j, int k);
+    }
+
+    final CsrCooccurences crc;
+    // rows whose non-zeroes are visited, ascending; null visits all of them
+    final int[] rows;
+    final int entries;
+    final int threads;
+    FastRandom rng;
+    // per worker thread: entries trained, nanoseconds in SGD steps, nanoseconds shuffling; reset every epoch
+    private final List<long[]> workers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<long[]> worker = ThreadLocal.withInitial(() -> {
+        final long[] counters = new long[3];
+        workers.add(counters);
+        return counters;
+    });
+    private long epochShuffleNanos;
+
+    TrainingScheduler(CsrCooccurences crc, int[] rows, int threads, FastRandom rng) {
+        this.crc = crc;
+        this.rows = rows;
+        int entries = crc.nonZeroes();
+        if (rows != null) {
+            entries = 0;
+            for (int i : rows)
+                entries += crc.rowPtr()[i + 1] - crc.rowPtr()[i];
+        }
+        this.entries = entries;
+        this.threads = Math.max(1, threads);
+        this.rng = rng;
+    }
+
+    // symmetric means that i and j address the same parameters, as in DECOMP where both rows of symDecomp are updated.
+    // rows limits epochs to the non-zeroes of the given rows, null visits the whole matrix.
+    public static TrainingScheduler create(Type type, CsrCooccurences crc, int[] rows, int threads, FastRandom rng,
+                                           boolean shuffleRows, boolean symmetric) {
+        final int[] sorted = rows == null ? null : IntStream.of(rows).sorted().distinct().toArray();
+        switch (type) {
+            case ROWS: return new Rows(crc, sorted, threads, rng, shuffleRows);
+            case STRATIFIED: return new Stratified(crc, sorted, threads, rng, symmetric);
+            default: return new Entries(crc, sorted, threads, rng);
+        }
+    }
+
+    // Non-zeroes visited by an epoch.
+    public int entries() {
+        return entries;
+    }
+
+    // Indices k of the visited non-zeroes in increasing order.
+    void forEachEntry(IntConsumer action) {
+        final int[] rowPtr = crc.rowPtr();
+        if (rows == null) {
+            for (int k = 0; k < rowPtr[crc.rows()]; k++)
+                action.accept(k);
+            return;
+        }
+        for (int i : rows) {
+            for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+                action.accept(k);
+        }
+    }
+
+    // Visits every non-zero once, returns the sum of the scores.
+    // The order of an epoch depends only on the state of rng at its start.
+    public abstract double epoch(EntryTrainer trainer);
+
+    public void setRandom(FastRandom rng) {
+        this.rng = rng;
+    }
+
+    // Entries trained by each worker thread during the last epoch, in no particular order of threads.
+    public long[] workerEntries() {
+        return workers.stream().mapToLong(counters -> counters[0]).filter(entries -> entries > 0).toArray();
+    }
+
+    // Time spent in SGD steps during the last epoch, summed over the worker threads.
+    public long updateNanos() {
+        return workers.stream().mapToLong(counters -> counters[1]).sum();
+    }
+
+    // Time spent shuffling the order of the last epoch, summed over the threads that did it.
+    public long shuffleNanos() {
+        return epochShuffleNanos + workers.stream().mapToLong(counters -> counters[2]).sum();
+    }
+
+    // Called at the start of epoch(), before any task is submitted.
+    void resetStats() {
+        for (long[] counters : workers)
+            Arrays.fill(counters, 0);
+        epochShuffleNanos = 0;
+    }
+
+    // Called by the epoch thread when it shuffles before the workers start.
+    void shuffled(long nanos) {
+        epochShuffleNanos += nanos;
+    }
+
+    // Called by a worker thread after it trained entries in nanos, shuffleNanos of them spent shuffling.
+    void worked(long entries, long nanos, long shuffleNanos) {
+        final long[] counters = worker.get();
+        counters[0] += entries;
+        counters[1] += nanos - shuffleNanos;
+        counters[2] += shuffleNanos;
+    }
+
+    @Override
+    public abstract void close();
+
+    static void shuffle(int[] order, FastRandom rng) {
+        for (int k = order.length - 1; k > 0; k--) {
+            final int swap = rng.nextInt(k + 1);
+            final int tmp = order[k];
+            order[k] = order[swap];
+            order[swap] = tmp;
+        }
+    }
+
+    static double runAll(ExecutorService pool, List<Callable<Double>> tasks) {
+        double result = 0;
+        try {
+            for (Future<Double> future : pool.invokeAll(tasks)) {
+                result += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TrainingException("Training was interrupted.");
+        } catch (ExecutionException e) {
+            throw new TrainingException("Training failed. " + e.getCause().getMessage());
+        }
+        return result;
+    }
+
+    static class Entries extends TrainingScheduler {
+        private final int[] entryRows;
+        private final int[] order;
+        private final ExecutorService pool;
+
+        Entries(CsrCooccurences crc, int[] rows, int threads, FastRandom rng) {
+            super(crc, rows, threads, rng);
+            final int[] rowPtr = crc.rowPtr();
+            entryRows = new int[crc.nonZeroes()];
+            IntStream.range(0, crc.rows()).parallel().forEach(i -> {
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+                    entryRows[k] = i;
+            });
+            order = new int[entries];
+            pool = Executors.newFixedThreadPool(this.threads);
+        }
+
+        @Override
+        public double epoch(EntryTrainer trainer) {
+            resetStats();
+            final long start = System.nanoTime();
+            if (rows == null) {
+                for (int k = 0; k < order.length; k++)
+                    order[k] = k;
+            } else {
+                final int[] filled = {0};
+                forEachEntry(k -> order[filled[0]++] = k);
+            }
+            shuffle(order, rng);
+            shuffled(System.nanoTime() - start);
+            final int[] columns = crc.columns();
+            final List<Callable<Double>> chunks = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int from = (int) ((long) order.length * t / threads);
+                final int to = (int) ((long) order.length * (t + 1) / threads);
+                chunks.add(() -> {
+                    final long chunkStart = System.nanoTime();
+                    double score = 0;
+                    for (int p = from; p < to; p++) {
+                        final int k = order[p];
+                        score += trainer.train(entryRows[k], columns[k], k);
+                    }
+                    worked(to - from, System.nanoTime() - chunkStart, 0);
+                    return score;
+                });
+            }
+            return runAll(pool, chunks);
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+    }
+
+    static class Rows extends TrainingScheduler {
+        private final int[] order;
+        private final boolean shuffle;
+        private final ForkJoinPool pool;
+
+        Rows(CsrCooccurences crc, int[] rows, int threads, FastRandom rng, boolean shuffle) {
+            super(crc, rows, threads, rng);
+            this.shuffle = shuffle;
+            order = rows == null ? IntStream.range(0, crc.rows()).toArray() : rows.clone();
+            pool = new ForkJoinPool(this.threads);
+        }
+
+        @Override
+        public double epoch(EntryTrainer trainer) {
+            resetStats();
+            if (shuffle) {
+                final long start = System.nanoTime();
+                for (int p = 0; p < order.length; p++)
+                    order[p] = rows == null ? p : rows[p];
+                shuffle(order, rng);
+                shuffled(System.nanoTime() - start);
+            }
+            final int[] rowPtr = crc.rowPtr();
+            final int[] columns = crc.columns();
+            final Callable<Double> task = () -> IntStream.range(0, order.length).parallel().mapToDouble(p -> {
+                final int i = order[p];
+                final long rowStart = System.nanoTime();
+                double score = 0;
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+                    score += trainer.train(i, columns[k], k);
+                worked(rowPtr[i + 1] - rowPtr[i], System.nanoTime() - rowStart, 0);
+                return score;
+            }).sum();
+            final List<Callable<Double>> tasks = new ArrayList<>(1);
+            tasks.add(task);
+            return runAll(pool, tasks);
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+    }
+
+    // Word i belongs to block i % P. Entries are bucketed by (row block, column block) once.
+    // Asymmetric: P = threads, sub-epoch s runs the diagonal of buckets (p, (p + s) % P), p = 0..P-1.
+    // Symmetric: a bucket pair (a, b) touches rows of both blocks a and b, so P = 2 * threads and
+    // the sub-epochs are the rounds of a round-robin tournament: P - 1 rounds of P / 2 disjoint pairs of blocks,
+    // each pair processing buckets (a, b) and (b, a), plus a round of the diagonal buckets (a, a).
+    // Sub-epochs are separated by a barrier, their order and the order inside a bucket are drawn from rng.
+    static class Stratified extends TrainingScheduler {
+        final int blocks;
+        private final boolean symmetric;
+        private final int[][][] buckets;
+        private final int[] entryRows;
+        // pairs of blocks of every sub-epoch, seen by the tests
+        final List<int[][]> strata = new ArrayList<>();
+        private final ExecutorService pool;
+
+        Stratified(CsrCooccurences crc, int[] rows, int threads, FastRandom rng, boolean symmetric) {
+            super(crc, rows, threads, rng);
+            this.symmetric = symmetric;
+            blocks = symmetric ? 2 * this.threads : this.threads;
+            final int[] rowPtr = crc.rowPtr();
+            final int[] columns = crc.columns();
+            entryRows = new int[crc.nonZeroes()];
+            final int[][] counts = new int[blocks][blocks];
+            for (int i = 0; i < crc.rows(); i++) {
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+                    entryRows[k] = i;
+            }
+            forEachEntry(k -> counts[entryRows[k] % blocks][columns[k] % blocks]++);
+            buckets = new int[blocks][blocks][];
+            for (int a = 0; a < blocks; a++) {
+                for (int b = 0; b < blocks; b++)
+                    buckets[a][b] = new int[counts[a][b]];
+            }
+            final int[][] filled = new int[blocks][blocks];
+            forEachEntry(k -> {
+                final int a = entryRows[k] % blocks;
+                final int b = columns[k] % blocks;
+                buckets[a][b][filled[a][b]++] = k;
+            });
+
+            if (symmetric) {
+                for (int round = 0; round < blocks - 1; round++) {
+                    final int[][] stratum = new int[blocks / 2][];
+                    stratum[0] = new int[]{blocks - 1, round};
+                    for (int m = 1; m < blocks / 2; m++)
+                        stratum[m] = new int[]{(round + m) % (blocks - 1), (round - m + blocks - 1) % (blocks - 1)};
+                    strata.add(stratum);
+                }
+                final int[][] diagonal = new int[blocks][];
+                for (int a = 0; a < blocks; a++)
+                    diagonal[a] = new int[]{a, a};
+                strata.add(diagonal);
+            } else {
+                for (int shift = 0; shift < blocks; shift++) {
+                    final int[][] stratum = new int[blocks][];
+                    for (int a = 0; a < blocks; a++)
+                        stratum[a] = new int[]{a, (a + shift) % blocks};
+                    strata.add(stratum);
+                }
+            }
+            pool = Executors.newFixedThreadPool(this.threads);
+        }
+
+        @Override
+        public double epoch(EntryTrainer trainer) {
+            resetStats();
+            final int[] columns = crc.columns();
+            final int[] order = IntStream.range(0, strata.size()).toArray();
+            shuffle(order, rng);
+            double score = 0;
+            for (int s : order) {
+                final List<Callable<Double>> tasks = new ArrayList<>();
+                for (int[] pair : strata.get(s)) {
+                    final int[] first = buckets[pair[0]][pair[1]];
+                    final int[] second = symmetric && pair[0] != pair[1] ? buckets[pair[1]][pair[0]] : new int[0];
+                    final long seed = rng.nextLong();
+                    tasks.add(() -> {
+                        final long start = System.nanoTime();
+                        final int[] entries = new int[first.length + second.length];
+                        System.arraycopy(first, 0, entries, 0, first.length);
+                        System.arraycopy(second, 0, entries, first.length, second.length);
+                        shuffle(entries, new FastRandom(seed));
+                        final long shuffled = System.nanoTime() - start;
+                        double result = 0;
+                        for (int k : entries)
+                            result += trainer.train(entryRows[k], columns[k], k);
+                        worked(entries.length, System.nanoTime() - start, shuffled);
+                        return result;
+                    });
+                }
+                score += runAll(pool, tasks);
+            }
+            return score;
+        }
+
+        @Override
+        public void close() {
+            pool.shutdown();
+        }
+    }
+}
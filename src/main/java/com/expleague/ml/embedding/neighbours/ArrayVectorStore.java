@@ -0,0 +1,53 @@
+package com.expleague.ml.embedding.neighbours;
+
+// Vectors on the heap, one array row by row.
+public class ArrayVectorStore implements VectorStore {
+    private final double[] vectors;
+    private final int dim;
+    private final int size;
+
+    public ArrayVectorStore(double[] vectors, int dim) {
+        this.vectors = vectors;
+        this.dim = dim;
+        this.size = vectors.length / dim;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int dim() {
+        return dim;
+    }
+
+    @Override
+    public double dot(int word, double[] query, int offset) {
+        return dot(vectors, word * dim, query, offset, dim);
+    }
+
+    @Override
+    public double dot(int word, int other) {
+        return dot(vectors, word * dim, vectors, other * dim, dim);
+    }
+
+    @Override
+    public void copyRows(int from, int to, double[] buffer) {
+        System.arraycopy(vectors, from * dim, buffer, 0, (to - from) * dim);
+    }
+
+    static double dot(double[] vectors, int offset, double[] query, int queryOffset, int dim) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < dim; k += 4) {
+            s0 += query[queryOffset + k] * vectors[offset + k];
+            s1 += query[queryOffset + k + 1] * vectors[offset + k + 1];
+            s2 += query[queryOffset + k + 2] * vectors[offset + k + 2];
+            s3 += query[queryOffset + k + 3] * vectors[offset + k + 3];
+        }
+        for (; k < dim; k++)
+            s0 += query[queryOffset + k] * vectors[offset + k];
+        return (s0 + s1) + (s2 + s3);
+    }
+}
@@ -0,0 +1,96 @@
+package com.expleague.ml.embedding.neighbours;
+
+import java.util.stream.IntStream;
+
+// Exact top words for many queries at once. The Q x V score matrix is the product of the query matrix
+// and the transposed vocabulary matrix, computed in tiles: a block of queries walks the vocabulary
+// a tile of rows at a time, the tile is copied into a buffer once per query block and then served from cache.
+// Query blocks are independent and run in parallel, each with its own heaps.
+public class BatchSearch {
+    static final int QUERY_BLOCK = 64;
+    static final int VOCAB_TILE = 256;
+
+    private final VectorStore vectors;
+    private final int dim;
+    private final int size;
+
+    public BatchSearch(VectorStore vectors) {
+        this.vectors = vectors;
+        this.dim = vectors.dim();
+        this.size = vectors.size();
+    }
+
+    // queries holds count query vectors row by row, except[q] the ids to skip for query q (may be null).
+    // Results of query q go to ids and scores at [q * top, q * top + found[q]), best first.
+    public void search(double[] queries, int count, int top, int[][] except, int[] ids, double[] scores, int[] found) {
+        final int blocks = (count + QUERY_BLOCK - 1) / QUERY_BLOCK;
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            final int from = b * QUERY_BLOCK;
+            final int to = Math.min(count, from + QUERY_BLOCK);
+            final ScoredHeap[] heaps = new ScoredHeap[to - from];
+            for (int q = from; q < to; q++)
+                heaps[q - from] = new ScoredHeap(top, true);
+            if (top > 0) {
+                final double[] tile = new double[VOCAB_TILE * dim];
+                for (int tileFrom = 0; tileFrom < size; tileFrom += VOCAB_TILE) {
+                    final int tileTo = Math.min(size, tileFrom + VOCAB_TILE);
+                    vectors.copyRows(tileFrom, tileTo, tile);
+                    scoreTile(queries, from, to, tile, tileFrom, tileTo, top, except, heaps);
+                }
+            }
+            final int[] tmpIds = new int[Math.max(1, top)];
+            final double[] tmpScores = new double[Math.max(1, top)];
+            for (int q = from; q < to; q++) {
+                final int n = heaps[q - from].drainDescending(tmpIds, tmpScores);
+                System.arraycopy(tmpIds, 0, ids, q * top, n);
+                System.arraycopy(tmpScores, 0, scores, q * top, n);
+                found[q] = n;
+            }
+        });
+    }
+
+    // Four queries share every load of a vocabulary row, the tail of the block goes one query at a time.
+    private void scoreTile(double[] queries, int from, int to, double[] tile, int tileFrom, int tileTo, int top,
+                           int[][] except, ScoredHeap[] heaps) {
+        int q = from;
+        for (; q + 3 < to; q += 4) {
+            final int o0 = q * dim, o1 = o0 + dim, o2 = o1 + dim, o3 = o2 + dim;
+            for (int idx = tileFrom; idx < tileTo; idx++) {
+                final int ov = (idx - tileFrom) * dim;
+                double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                for (int k = 0; k < dim; k++) {
+                    final double v = tile[ov + k];
+                    s0 += queries[o0 + k] * v;
+                    s1 += queries[o1 + k] * v;
+                    s2 += queries[o2 + k] * v;
+                    s3 += queries[o3 + k] * v;
+                }
+                offer(heaps[q - from], except, q, idx, s0, top);
+                offer(heaps[q + 1 - from], except, q + 1, idx, s1, top);
+                offer(heaps[q + 2 - from], except, q + 2, idx, s2, top);
+                offer(heaps[q + 3 - from], except, q + 3, idx, s3, top);
+            }
+        }
+        for (; q < to; q++) {
+            for (int idx = tileFrom; idx < tileTo; idx++)
+                offer(heaps[q - from], except, q, idx,
+                    ArrayVectorStore.dot(tile, (idx - tileFrom) * dim, queries, q * dim, dim), top);
+        }
+    }
+
+    private static void offer(ScoredHeap heap, int[][] except, int q, int idx, double score, int top) {
+        final boolean full = heap.size() >= top;
+        if (full && score <= heap.topScore())
+            return;
+        if (except != null && except[q] != null) {
+            for (int skip : except[q]) {
+                if (skip == idx)
+                    return;
+            }
+        }
+        if (full)
+            heap.replaceTop(idx, score);
+        else
+            heap.push(idx, score);
+    }
+}
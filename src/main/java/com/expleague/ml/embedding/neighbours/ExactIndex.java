@@ -0,0 +1,33 @@
+package com.expleague.ml.embedding.neighbours;
+
+import gnu.trove.set.TIntSet;
+
+// Scans every vector keeping the best ones in a bounded heap, O(V log top). The reference for approximate indices.
+public class ExactIndex implements NeighbourIndex {
+    private final VectorStore vectors;
+    private final int size;
+    private final ThreadLocal<ScoredHeap> heap = ThreadLocal.withInitial(() -> new ScoredHeap(16, true));
+
+    public ExactIndex(VectorStore vectors) {
+        this.vectors = vectors;
+        this.size = vectors.size();
+    }
+
+    @Override
+    public int search(double[] query, int top, TIntSet except, int[] ids, double[] scores) {
+        final ScoredHeap heap = this.heap.get();
+        heap.clear();
+        if (top <= 0)
+            return 0;
+        for (int idx = 0; idx < size; idx++) {
+            if (except.contains(idx))
+                continue;
+            final double score = vectors.dot(idx, query, 0);
+            if (heap.size() < top)
+                heap.push(idx, score);
+            else if (score > heap.topScore())
+                heap.replaceTop(idx, score);
+        }
+        return heap.drainDescending(ids, scores);
+    }
+}
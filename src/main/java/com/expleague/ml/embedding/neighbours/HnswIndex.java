@@ -0,0 +1,450 @@
+package com.expleague.ml.embedding.neighbours;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.exceptions.LoadingModelException;
+import com.expleague.ml.embedding.exceptions.NeighbourIndexException;
+import gnu.trove.set.TIntSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hierarchical navigable small world graph (Malkov & Yashunin) over normalized vectors, similarity is the scalar product.
+// Every word gets a random level, on each level up to its own it is linked to m neighbours (2 * m on level 0)
+// chosen by the diversity heuristic. A search descends greedily from the top and explores level 0 with a beam of ef.
+// efConstruction and m trade build time and memory for recall, efSearch trades query latency for recall.
+// Words are inserted in parallel, links of a word are guarded by a striped lock while the graph is being built.
+public class HnswIndex implements NeighbourIndex {
+    public static final int MAGIC = 0x48563257;
+    public static final int VERSION = 1;
+    private static final int LOCK_STRIPES = 1 << 12;
+    private static final int CHUNK = 1 << 20;
+
+    private final VectorStore vectors;
+    private final int dim;
+    private final int size;
+    private final int m;
+    private final int m0;
+    private final int efConstruction;
+    private volatile int efSearch;
+    private final int[] levels;
+    // word * (m0 + 1): number of links, then the links
+    private final int[] links0;
+    // word -> levels 1..levels[word] by (m + 1): number of links, then the links
+    private final int[][] upperLinks;
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+    private volatile boolean building;
+    private final Object[] locks;
+    private final ThreadLocal<Scratch> scratch;
+
+    public static class Parameters {
+        private int m = 16;
+        private int efConstruction = 200;
+        private int efSearch = 64;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private long seed = 100500;
+
+        public Parameters setM(int m) {
+            this.m = m;
+            return this;
+        }
+
+        public Parameters setEfConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        public Parameters setEfSearch(int efSearch) {
+            this.efSearch = efSearch;
+            return this;
+        }
+
+        public Parameters setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Parameters setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    private HnswIndex(VectorStore vectors, int m, int efConstruction, int efSearch, int[] levels) {
+        this.vectors = vectors;
+        this.dim = vectors.dim();
+        this.size = vectors.size();
+        this.m = m;
+        this.m0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levels = levels;
+        this.links0 = new int[size * (m0 + 1)];
+        this.upperLinks = new int[size][];
+        for (int word = 0; word < size; word++) {
+            if (levels[word] > 0)
+                upperLinks[word] = new int[levels[word] * (m + 1)];
+        }
+        this.locks = new Object[LOCK_STRIPES];
+        for (int l = 0; l < LOCK_STRIPES; l++)
+            locks[l] = new Object();
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(size, dim, m0));
+    }
+
+    public static HnswIndex build(VectorStore vectors, Parameters parameters) {
+        final int size = vectors.size();
+        final FastRandom rng = new FastRandom(parameters.seed);
+        final double levelScale = 1 / Math.log(Math.max(2, parameters.m));
+        final int[] levels = new int[size];
+        for (int word = 0; word < size; word++)
+            levels[word] = (int) (-Math.log(1 - rng.nextDouble()) * levelScale);
+
+        final HnswIndex index = new HnswIndex(vectors, parameters.m, parameters.efConstruction, parameters.efSearch, levels);
+        if (size == 0)
+            return index;
+        index.building = true;
+        index.entryPoint = 0;
+        index.maxLevel = levels[0];
+        final AtomicInteger next = new AtomicInteger(1);
+        final int threads = Math.max(1, parameters.threads);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Callable<Void>> workers = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(() -> {
+                    final Scratch scratch = index.scratch.get();
+                    int word;
+                    while ((word = next.getAndIncrement()) < size)
+                        index.insert(word, scratch);
+                    return null;
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(workers))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NeighbourIndexException("Index construction was interrupted.");
+        } catch (ExecutionException e) {
+            throw new NeighbourIndexException("Index construction failed. " + e.getCause().getMessage());
+        } finally {
+            pool.shutdown();
+        }
+        index.building = false;
+        return index;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    // Beam width of queries, larger is slower and more accurate. A query never uses less than top + excluded words.
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public int search(double[] query, int top, TIntSet except, int[] ids, double[] scores) {
+        if (size == 0 || top <= 0)
+            return 0;
+        final Scratch scratch = this.scratch.get();
+        int current = entryPoint;
+        for (int level = maxLevel; level > 0; level--)
+            current = greedy(query, 0, current, level, scratch);
+        final int ef = Math.max(efSearch, top + except.size());
+        searchLevel(query, 0, current, ef, 0, scratch);
+        final int count = scratch.drain();
+        int found = 0;
+        for (int r = 0; r < count && found < top; r++) {
+            if (except.contains(scratch.candidateIds[r]))
+                continue;
+            ids[found] = scratch.candidateIds[r];
+            scores[found] = scratch.candidateScores[r];
+            found++;
+        }
+        return found;
+    }
+
+    private void insert(int word, Scratch scratch) {
+        final int level = levels[word];
+        int current;
+        int top;
+        synchronized (this) {
+            current = entryPoint;
+            top = maxLevel;
+        }
+        final double[] query = scratch.query;
+        vectors.copyRows(word, word + 1, query);
+        for (int l = top; l > level; l--)
+            current = greedy(query, 0, current, l, scratch);
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            searchLevel(query, 0, current, efConstruction, l, scratch);
+            final int count = scratch.drain();
+            final int chosen = selectNeighbours(scratch.candidateIds, scratch.candidateScores, count, m, word, scratch.chosen);
+            setLinks(word, l, scratch.chosen, chosen);
+            final int limit = l == 0 ? m0 : m;
+            for (int c = 0; c < chosen; c++)
+                addLink(scratch.chosen[c], word, l, limit, scratch);
+            if (count > 0)
+                current = scratch.candidateIds[0];
+        }
+        if (level > top) {
+            synchronized (this) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = word;
+                }
+            }
+        }
+    }
+
+    private int greedy(double[] query, int offset, int current, int level, Scratch scratch) {
+        double best = dot(query, offset, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final int count = readLinks(current, level, scratch.links);
+            for (int n = 0; n < count; n++) {
+                final int candidate = scratch.links[n];
+                final double score = dot(query, offset, candidate);
+                if (score > best) {
+                    best = score;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Beam search on one level, the best ef words end up in scratch.results.
+    private void searchLevel(double[] query, int offset, int entry, int ef, int level, Scratch scratch) {
+        final int mark = scratch.nextMark();
+        final ScoredHeap candidates = scratch.candidates;
+        final ScoredHeap results = scratch.results;
+        candidates.clear();
+        results.clear();
+        final double entryScore = dot(query, offset, entry);
+        scratch.visited[entry] = mark;
+        candidates.push(entry, entryScore);
+        results.push(entry, entryScore);
+        while (candidates.size() > 0) {
+            final int current = candidates.topId();
+            if (candidates.topScore() < results.topScore() && results.size() >= ef)
+                break;
+            candidates.pop();
+            final int count = readLinks(current, level, scratch.links);
+            for (int n = 0; n < count; n++) {
+                final int next = scratch.links[n];
+                if (scratch.visited[next] == mark)
+                    continue;
+                scratch.visited[next] = mark;
+                final double score = dot(query, offset, next);
+                if (results.size() < ef || score > results.topScore()) {
+                    candidates.push(next, score);
+                    results.push(next, score);
+                    if (results.size() > ef)
+                        results.pop();
+                }
+            }
+        }
+    }
+
+    // Diversity heuristic: a candidate is kept if it is closer to the base word than to every kept one.
+    // Candidates must be sorted best first.
+    private int selectNeighbours(int[] ids, double[] scores, int count, int limit, int self, int[] chosen) {
+        int selected = 0;
+        for (int c = 0; c < count && selected < limit; c++) {
+            final int candidate = ids[c];
+            if (candidate == self)
+                continue;
+            boolean good = true;
+            for (int s = 0; s < selected && good; s++)
+                good = vectors.dot(chosen[s], candidate) < scores[c];
+            if (good)
+                chosen[selected++] = candidate;
+        }
+        return selected;
+    }
+
+    private void addLink(int word, int link, int level, int limit, Scratch scratch) {
+        synchronized (lock(word)) {
+            final int[] storage = level == 0 ? links0 : upperLinks[word];
+            final int base = level == 0 ? word * (m0 + 1) : (level - 1) * (m + 1);
+            final int count = storage[base];
+            if (count < limit) {
+                storage[base + 1 + count] = link;
+                storage[base] = count + 1;
+                return;
+            }
+            // full: keep the most diverse neighbours among the old ones and the new one
+            final ScoredHeap heap = scratch.shrink;
+            heap.clear();
+            for (int n = 0; n < count; n++)
+                heap.push(storage[base + 1 + n], vectors.dot(word, storage[base + 1 + n]));
+            heap.push(link, vectors.dot(word, link));
+            final int total = heap.drainDescending(scratch.shrinkIds, scratch.shrinkScores);
+            final int kept = selectNeighbours(scratch.shrinkIds, scratch.shrinkScores, total, limit, word, scratch.shrinkChosen);
+            System.arraycopy(scratch.shrinkChosen, 0, storage, base + 1, kept);
+            storage[base] = kept;
+        }
+    }
+
+    private void setLinks(int word, int level, int[] links, int count) {
+        synchronized (lock(word)) {
+            final int[] storage = level == 0 ? links0 : upperLinks[word];
+            final int base = level == 0 ? word * (m0 + 1) : (level - 1) * (m + 1);
+            System.arraycopy(links, 0, storage, base + 1, count);
+            storage[base] = count;
+        }
+    }
+
+    private int readLinks(int word, int level, int[] to) {
+        if (building) {
+            synchronized (lock(word)) {
+                return copyLinks(word, level, to);
+            }
+        }
+        return copyLinks(word, level, to);
+    }
+
+    private int copyLinks(int word, int level, int[] to) {
+        final int[] storage = level == 0 ? links0 : upperLinks[word];
+        final int base = level == 0 ? word * (m0 + 1) : (level - 1) * (m + 1);
+        final int count = storage[base];
+        System.arraycopy(storage, base + 1, to, 0, count);
+        return count;
+    }
+
+    private Object lock(int word) {
+        return locks[word & (LOCK_STRIPES - 1)];
+    }
+
+    private double dot(double[] query, int offset, int word) {
+        return vectors.dot(word, query, offset);
+    }
+
+    // Little-endian ints: magic "W2VH", version, words, dimension, m, efConstruction, efSearch, max level, entry point,
+    // levels[words], level 0 links, then the upper links of every word with a positive level.
+    public void save(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(dim).putInt(m).putInt(efConstruction)
+                .putInt(efSearch).putInt(maxLevel).putInt(entryPoint);
+            writeInts(channel, buffer, levels);
+            writeInts(channel, buffer, links0);
+            for (int word = 0; word < size; word++) {
+                if (upperLinks[word] != null)
+                    writeInts(channel, buffer, upperLinks[word]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    // The vectors must be the normalized vectors the index was built over.
+    public static HnswIndex load(Path path, VectorStore vectors) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            final int[] header = new int[9];
+            readInts(channel, buffer, header);
+            if (header[0] != MAGIC)
+                throw new LoadingModelException(path + " is not a neighbour index file.");
+            if (header[1] != VERSION)
+                throw new LoadingModelException("Unsupported neighbour index version " + header[1] + " in " + path + ".");
+            if (header[2] != vectors.size() || header[3] != vectors.dim())
+                throw new LoadingModelException("Neighbour index " + path + " was built for other vectors.");
+            final int[] levels = new int[header[2]];
+            readInts(channel, buffer, levels);
+            final HnswIndex index = new HnswIndex(vectors, header[4], header[5], header[6], levels);
+            index.maxLevel = header[7];
+            index.entryPoint = header[8];
+            readInts(channel, buffer, index.links0);
+            for (int word = 0; word < index.size; word++) {
+                if (index.upperLinks[word] != null)
+                    readInts(channel, buffer, index.upperLinks[word]);
+            }
+            return index;
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int value : values) {
+            if (buffer.remaining() < 4) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                buffer.clear();
+            }
+            buffer.putInt(value);
+        }
+    }
+
+    private static void readInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int v = 0; v < values.length; v++) {
+            if (buffer.remaining() < 4) {
+                buffer.compact();
+                if (channel.read(buffer) < 0)
+                    throw new LoadingModelException("Neighbour index file is truncated.");
+                buffer.flip();
+                v--;
+                continue;
+            }
+            values[v] = buffer.getInt();
+        }
+    }
+
+    private static class Scratch {
+        final int[] visited;
+        final double[] query;
+        int mark;
+        final ScoredHeap candidates = new ScoredHeap(64, false);
+        final ScoredHeap results = new ScoredHeap(64, true);
+        final ScoredHeap shrink = new ScoredHeap(64, false);
+        final int[] links;
+        final int[] chosen;
+        final int[] shrinkIds;
+        final double[] shrinkScores;
+        final int[] shrinkChosen;
+        int[] candidateIds = new int[64];
+        double[] candidateScores = new double[64];
+
+        Scratch(int size, int dim, int m0) {
+            visited = new int[size];
+            query = new double[dim];
+            links = new int[m0];
+            chosen = new int[m0];
+            shrinkIds = new int[m0 + 1];
+            shrinkScores = new double[m0 + 1];
+            shrinkChosen = new int[m0 + 1];
+        }
+
+        int nextMark() {
+            if (++mark == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                mark = 1;
+            }
+            return mark;
+        }
+
+        // Moves results into candidateIds and candidateScores, best first.
+        int drain() {
+            if (candidateIds.length < results.size()) {
+                candidateIds = new int[results.size()];
+                candidateScores = new double[results.size()];
+            }
+            return results.drainDescending(candidateIds, candidateScores);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.expleague.ml.embedding.neighbours;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.ml.embedding.exceptions.LoadingModelException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Normalized vectors in a memory-mapped file, nothing is read until a row is touched and the pages
+// are shared by all processes serving the same model. The file is written once when the model is saved:
+// little-endian int magic "W2VN", int version, int rows, int dimension, then rows * dimension floats row by row.
+public class MappedVectorStore implements VectorStore {
+    public static final int MAGIC = 0x4E563257;
+    public static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int CHUNK = 1 << 20;
+    private static final long MAX_MAPPING = 1L << 30;
+
+    private final FloatBuffer[] mappings;
+    private final int rowsPerMapping;
+    private final int dim;
+    private final int size;
+
+    private MappedVectorStore(FloatBuffer[] mappings, int rowsPerMapping, int size, int dim) {
+        this.mappings = mappings;
+        this.rowsPerMapping = rowsPerMapping;
+        this.size = size;
+        this.dim = dim;
+    }
+
+    // Normalizes the rows of vectors on the way to the file.
+    public static void write(Path path, Mx vectors) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(vectors.rows()).putInt(vectors.columns());
+            for (int i = 0; i < vectors.rows(); i++) {
+                double norm = 0;
+                for (int j = 0; j < vectors.columns(); j++)
+                    norm += vectors.get(i, j) * vectors.get(i, j);
+                norm = Math.sqrt(norm);
+                for (int j = 0; j < vectors.columns(); j++) {
+                    if (buffer.remaining() < 4)
+                        flush(channel, buffer);
+                    buffer.putFloat((float) (vectors.get(i, j) / norm));
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    public static MappedVectorStore open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER)
+                throw new LoadingModelException(path + " is not a normalized vectors file.");
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC)
+                throw new LoadingModelException(path + " is not a normalized vectors file.");
+            final int version = header.getInt();
+            if (version != VERSION)
+                throw new LoadingModelException("Unsupported normalized vectors version " + version + " in " + path + ".");
+            final int size = header.getInt();
+            final int dim = header.getInt();
+            final long rowBytes = 4L * dim;
+            if (channel.size() != HEADER + rowBytes * size)
+                throw new LoadingModelException(path + " is truncated.");
+
+            // whole rows per mapping, so that a row never crosses two of them
+            final int rowsPerMapping = (int) Math.max(1, MAX_MAPPING / Math.max(1, rowBytes));
+            final FloatBuffer[] mappings = new FloatBuffer[(size + rowsPerMapping - 1) / rowsPerMapping];
+            for (int c = 0; c < mappings.length; c++) {
+                final int rows = Math.min(rowsPerMapping, size - c * rowsPerMapping);
+                mappings[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + c * rowsPerMapping * rowBytes, rows * rowBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+            }
+            return new MappedVectorStore(mappings, rowsPerMapping, size, dim);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int dim() {
+        return dim;
+    }
+
+    @Override
+    public double dot(int word, double[] query, int offset) {
+        final FloatBuffer mapping = mappings[word / rowsPerMapping];
+        final int base = (word % rowsPerMapping) * dim;
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < dim; k += 4) {
+            s0 += query[offset + k] * mapping.get(base + k);
+            s1 += query[offset + k + 1] * mapping.get(base + k + 1);
+            s2 += query[offset + k + 2] * mapping.get(base + k + 2);
+            s3 += query[offset + k + 3] * mapping.get(base + k + 3);
+        }
+        for (; k < dim; k++)
+            s0 += query[offset + k] * mapping.get(base + k);
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public double dot(int word, int other) {
+        final FloatBuffer a = mappings[word / rowsPerMapping];
+        final FloatBuffer b = mappings[other / rowsPerMapping];
+        final int baseA = (word % rowsPerMapping) * dim;
+        final int baseB = (other % rowsPerMapping) * dim;
+        double result = 0;
+        for (int k = 0; k < dim; k++)
+            result += (double) a.get(baseA + k) * b.get(baseB + k);
+        return result;
+    }
+
+    @Override
+    public void copyRows(int from, int to, double[] buffer) {
+        for (int word = from; word < to; word++) {
+            final FloatBuffer mapping = mappings[word / rowsPerMapping];
+            final int base = (word % rowsPerMapping) * dim;
+            final int at = (word - from) * dim;
+            for (int k = 0; k < dim; k++)
+                buffer[at + k] = mapping.get(base + k);
+        }
+    }
+}
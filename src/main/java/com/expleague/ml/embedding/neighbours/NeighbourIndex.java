@@ -0,0 +1,10 @@
+package com.expleague.ml.embedding.neighbours;
+
+import gnu.trove.set.TIntSet;
+
+// Nearest words by the scalar product of normalized vectors.
+public interface NeighbourIndex {
+    // Puts up to top best words for query into ids and scores, best first, skipping the except ids.
+    // Returns the number of words found. Implementations must be safe for concurrent searches.
+    int search(double[] query, int top, TIntSet except, int[] ids, double[] scores);
+}
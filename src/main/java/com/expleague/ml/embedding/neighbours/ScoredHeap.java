@@ -0,0 +1,102 @@
+package com.expleague.ml.embedding.neighbours;
+
+import java.util.Arrays;
+
+// Binary heap of (id, score) pairs on primitive arrays, either the smallest or the largest score on top.
+final class ScoredHeap {
+    private final boolean minOnTop;
+    private int[] ids;
+    private double[] scores;
+    private int size;
+
+    ScoredHeap(int capacity, boolean minOnTop) {
+        this.minOnTop = minOnTop;
+        this.ids = new int[Math.max(1, capacity)];
+        this.scores = new double[Math.max(1, capacity)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int topId() {
+        return ids[0];
+    }
+
+    double topScore() {
+        return scores[0];
+    }
+
+    void push(int id, double score) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+            scores = Arrays.copyOf(scores, 2 * size);
+        }
+        ids[size] = id;
+        scores[size] = score;
+        int pos = size++;
+        while (pos > 0) {
+            final int parent = (pos - 1) / 2;
+            if (!above(pos, parent))
+                return;
+            swap(parent, pos);
+            pos = parent;
+        }
+    }
+
+    void pop() {
+        size--;
+        ids[0] = ids[size];
+        scores[0] = scores[size];
+        siftDown(0);
+    }
+
+    void replaceTop(int id, double score) {
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0);
+    }
+
+    // Empties the heap into the arrays, best (largest) score first. Returns the number of elements.
+    int drainDescending(int[] toIds, double[] toScores) {
+        final int count = size;
+        for (int r = 0; r < count; r++) {
+            final int at = minOnTop ? count - 1 - r : r;
+            toIds[at] = ids[0];
+            toScores[at] = scores[0];
+            pop();
+        }
+        return count;
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            final int left = 2 * pos + 1;
+            if (left >= size)
+                return;
+            final int right = left + 1;
+            final int child = right < size && above(right, left) ? right : left;
+            if (!above(child, pos))
+                return;
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private boolean above(int a, int b) {
+        return minOnTop ? scores[a] < scores[b] : scores[a] > scores[b];
+    }
+
+    private void swap(int a, int b) {
+        final int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        final double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
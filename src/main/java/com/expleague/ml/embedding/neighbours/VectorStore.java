@@ -0,0 +1,18 @@
+package com.expleague.ml.embedding.neighbours;
+
+// Read-only row-major matrix of normalized word vectors that the indices search in.
+// Implementations must be safe for concurrent reads.
+public interface VectorStore {
+    int size();
+
+    int dim();
+
+    // Scalar product of row word and query[offset, offset + dim).
+    double dot(int word, double[] query, int offset);
+
+    // Scalar product of two rows.
+    double dot(int word, int other);
+
+    // Copies rows [from, to) into buffer starting from 0.
+    void copyRows(int from, int to, double[] buffer);
+}
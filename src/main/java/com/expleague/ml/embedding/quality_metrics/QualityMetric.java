@@ -7,28 +7,83 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public abstract class QualityMetric {
 
     protected final Model model;
-    protected List<List<String>> words = new ArrayList<>();
     protected List<String> files = new ArrayList<>();
-    protected int words_size = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
 
     public QualityMetric(Model model) {
         this.model = model;
     }
 
+    // Threads shared by all files and lines of a measure call.
+    public QualityMetric setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
     protected abstract void check(List<String> wordsLine, int lineNumber);
 
-    public abstract void measure(String input, String output);
+    // Contents of the result file for the questions of one metrics file, lines of questions in their order.
+    // Called for several files at once, implementations keep their state local.
+    protected abstract List<String> evaluate(String name, List<List<String>> words);
+
+    // Files and lines within them are evaluated in parallel on a pool of the given number of threads.
+    // Each result file is written by a background writer as soon as it is ready, the contents don't depend on timing.
+    public void measure(String input, String output) {
+        readMetricsNames(input);
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            final List<CompletableFuture<Void>> written = pool.submit(() -> files.parallelStream().map(fileName -> {
+                final String shortName = new File(fileName).getName();
+                System.out.println("Started working with " + shortName);
+                final List<String> lines = evaluate(shortName, readMetricsFile(fileName));
+                return CompletableFuture.runAsync(() -> writeResults(new File(output + "/" + shortName), lines), writer);
+            }).collect(Collectors.toList())).get();
+            CompletableFuture.allOf(written.toArray(new CompletableFuture[0])).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetricsIOException("Measuring was interrupted.");
+        } catch (ExecutionException | CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new MetricsIOException("Measuring failed. " + e.getCause().getMessage());
+        } finally {
+            pool.shutdown();
+            writer.shutdown();
+        }
+    }
+
+    private static void writeResults(File file, List<String> lines) {
+        PrintStream fout;
+        try {
+            fout = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        } catch (FileNotFoundException e) {
+            throw new MetricsIOException("Couldn't find the file to write the metrics results to: " + file);
+        }
+        for (String line : lines)
+            fout.println(line);
+        fout.close();
+    }
 
     private String normalizeWord(String input) {
         return input.toLowerCase();
     }
 
     protected void readMetricsNames(String fileName) {
+        files = new ArrayList<>();
         File file = new File(fileName);
         BufferedReader fin;
         try {
@@ -46,8 +101,8 @@ public abstract class QualityMetric {
         }
     }
 
-    protected String readMetricsFile(String input) {
-        words = new ArrayList<>();
+    protected List<List<String>> readMetricsFile(String input) {
+        final List<List<String>> words = new ArrayList<>();
         File file = new File(input);
         BufferedReader fin;
         try {
@@ -56,7 +111,7 @@ public abstract class QualityMetric {
             throw new MetricsIOException("Couldn't find the file to readMetricsFile words from.");
         }
         try {
-            words_size = Integer.parseInt(fin.readLine());
+            final int words_size = Integer.parseInt(fin.readLine());
             for (int i = 0; i < words_size; i++) {
                 List<String> line = Arrays.asList(fin.readLine().split(" "));
                 check(line, i);
@@ -67,6 +122,16 @@ public abstract class QualityMetric {
         } catch (IOException e) {
             throw new MetricsIOException("Error occurred during reading from the file.");
         }
-        return file.getName();
+        return words;
+    }
+
+    // "WORDS ... ARE NOT IN VOCABULARY!" line for a question with unknown words.
+    protected String notInVocabulary(List<String> wordsLine) {
+        List<String> excludes = new ArrayList<>();
+        for (String word : wordsLine) {
+            if (!model.isWordInVocab(word))
+                excludes.add(word);
+        }
+        return "WORDS " + String.join(", ", excludes) + " ARE NOT IN VOCABULARY!";
     }
 }
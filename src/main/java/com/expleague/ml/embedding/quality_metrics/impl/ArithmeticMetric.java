@@ -1,16 +1,15 @@
 package com.expleague.ml.embedding.quality_metrics.impl;
 
+import com.expleague.commons.math.vectors.Mx;
 import com.expleague.commons.math.vectors.Vec;
-import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
+import com.expleague.commons.math.vectors.impl.mx.VecBasedMx;
 import com.expleague.ml.embedding.Model;
 import com.expleague.ml.embedding.exceptions.MetricsIOException;
-import com.expleague.ml.embedding.exceptions.Word2VecUsageException;
 import com.expleague.ml.embedding.quality_metrics.QualityMetric;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 public class ArithmeticMetric extends QualityMetric {
@@ -29,64 +28,73 @@ public class ArithmeticMetric extends QualityMetric {
     }
 
     @Override
-    public void measure(String input, String output) {
-        readMetricsNames(input);
+    protected List<String> evaluate(String name, List<List<String>> words) {
+        final String[] results = new String[words.size()];
+        final Score score = countMetric(words, results);
 
-        for (String fileName : files) {
-            String short_name = readMetricsFile(fileName);
-            System.out.println("Started working with " + short_name);
-            File file = new File(output + "/" + short_name);
-            PrintStream fout;
-            try {
-                fout = new PrintStream(file);
-            } catch (FileNotFoundException e) {
-                throw new MetricsIOException("Couldn't find the file to write the closer-further metrics results to");
-            }
-
-            List<String> results = new ArrayList<>();
-            final int[] counts = {0, 0, 0}; // 0 for total, 1 for top1, 2 for top5
-            countMetric(results, counts);
-
-            System.out.println(String.format("Finished working: score is %d out of %d (%d%%)",
-                    counts[1], counts[0], 100 * counts[1] / counts[0]));
-            fout.println(String.format("Number of top1 is %d out of %d (%d%%)",
-                    counts[1], counts[0], 100 * counts[1] / counts[0]));
-            fout.println(String.format("Number of top5 is %d out of %d (%d%%)",
-                    counts[2], counts[0], 100 * counts[2] / counts[0]));
-            for (int i = 0; i < words_size; i++) {
-                fout.println(String.format("%s\t->\t%s", words.get(i).get(3), results.get(i)));
-            }
-            fout.close();
+        System.out.println(String.format("Finished working with %s: score is %d out of %d (%d%%)",
+                name, score.top1, score.total, percent(score.top1, score.total)));
+        final List<String> lines = new ArrayList<>(results.length + 2);
+        lines.add(String.format("Number of top1 is %d out of %d (%d%%)",
+                score.top1, score.total, percent(score.top1, score.total)));
+        lines.add(String.format("Number of top5 is %d out of %d (%d%%)",
+                score.top5, score.total, percent(score.top5, score.total)));
+        for (int i = 0; i < results.length; i++) {
+            lines.add(String.format("%s\t->\t%s", words.get(i).get(3), results[i]));
         }
+        return lines;
     }
 
-    private void countMetric(List<String> results, final int[] counts) {
-        IntStream.range(0, words_size).forEach(i -> {
-            Vec predicted = new ArrayVec(vector_size);
-            if (model.isWordsListInVocab(words.get(i))) {
-                final Vec v1 = model.getVectorByWord(words.get(i).get(0));
-                final Vec v2 = model.getVectorByWord(words.get(i).get(1));
-                final Vec v3 = model.getVectorByWord(words.get(i).get(2));
-                IntStream.range(0, vector_size).forEach(j -> {
-                    predicted.set(j, v2.get(j));
-                    predicted.adjust(j, -v1.get(j));
-                    predicted.adjust(j, v3.get(j));
-                });
+    private static int percent(int part, int total) {
+        return total == 0 ? 0 : 100 * part / total;
+    }
 
-                List<String> result = model.getClosestWordsExcept(predicted, 5, words.get(i).subList(0, 3));
-                results.add(String.join(", ", result));
-                if (result.contains(words.get(i).get(3))) counts[2]++;
-                if (words.get(i).get(3).equals(result.get(0))) counts[1]++;
-                counts[0]++;
-            } else {
-                List<String> excludes = new ArrayList<>();
-                for (String word : words.get(i)) {
-                    if (!model.isWordInVocab(word))
-                        excludes.add(word);
-                }
-                results.add("WORDS " + String.join(", ", excludes) + " ARE NOT IN VOCABULARY!");
-            }
+    // All answerable questions are searched in one batch, b - a + c for every question is a row of the query matrix.
+    // results[i] gets the line of the question i, the score is summed up in per-thread accumulators.
+    private Score countMetric(List<List<String>> words, String[] results) {
+        final int[] answerable = IntStream.range(0, words.size())
+                .filter(i -> model.isWordsListInVocab(words.get(i)))
+                .toArray();
+        final Mx predicted = new VecBasedMx(answerable.length, vector_size);
+        IntStream.range(0, answerable.length).parallel().forEach(q -> {
+            final List<String> line = words.get(answerable[q]);
+            final Vec v1 = model.getVectorByWord(line.get(0));
+            final Vec v2 = model.getVectorByWord(line.get(1));
+            final Vec v3 = model.getVectorByWord(line.get(2));
+            for (int j = 0; j < vector_size; j++)
+                predicted.set(q, j, v2.get(j) - v1.get(j) + v3.get(j));
         });
+        final List<List<String>> exceptWords = new ArrayList<>(answerable.length);
+        for (int i : answerable)
+            exceptWords.add(words.get(i).subList(0, 3));
+        final List<List<String>> closest = model.getClosestWordsExcept(predicted, 5, exceptWords);
+
+        final int[] question = new int[words.size()];
+        Arrays.fill(question, -1);
+        for (int q = 0; q < answerable.length; q++)
+            question[answerable[q]] = q;
+        return IntStream.range(0, words.size()).parallel().collect(Score::new, (score, i) -> {
+            if (question[i] < 0) {
+                results[i] = notInVocabulary(words.get(i));
+                return;
+            }
+            final List<String> result = closest.get(question[i]);
+            results[i] = String.join(", ", result);
+            if (result.contains(words.get(i).get(3))) score.top5++;
+            if (!result.isEmpty() && words.get(i).get(3).equals(result.get(0))) score.top1++;
+            score.total++;
+        }, Score::add);
     }
 
+    private static class Score {
+        int total;
+        int top1;
+        int top5;
+
+        void add(Score other) {
+            total += other.total;
+            top1 += other.top1;
+            top5 += other.top5;
+        }
+    }
 }
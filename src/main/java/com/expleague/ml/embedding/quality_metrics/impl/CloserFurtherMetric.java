@@ -1,13 +1,12 @@
 package com.expleague.ml.embedding.quality_metrics.impl;
 
 import com.expleague.commons.math.vectors.Vec;
-import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
 import com.expleague.ml.embedding.Model;
 import com.expleague.ml.embedding.exceptions.MetricsIOException;
 import com.expleague.ml.embedding.quality_metrics.QualityMetric;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
 
@@ -24,34 +23,19 @@ public class CloserFurtherMetric extends QualityMetric {
     }
 
     @Override
-    public void measure(String input, String output) {
-        readMetricsNames(input);
-
-        for (String fileName : files) {
-            String short_name = readMetricsFile(fileName);
-            System.out.println("Started working with " + short_name);
-            File file = new File(output + "/" + short_name);
-            PrintStream fout;
-            try {
-                fout = new PrintStream(file);
-            } catch (FileNotFoundException e) {
-                throw new MetricsIOException("Couldn't find the file to write the closer-further metrics results to");
-            }
-
-            List<String> result = new ArrayList<>(words_size);
-            int success = countMetric(result);
-            fout.println(String.format("%d successes out of %d", success, words_size));
-            fout.println();
-            for (int i = 0; i < words_size; i++) {
-                fout.println(result.get(i));
-            }
-            fout.close();
-        }
+    protected List<String> evaluate(String name, List<List<String>> words) {
+        final String[] result = new String[words.size()];
+        final int success = countMetric(words, result);
+        final List<String> lines = new ArrayList<>(result.length + 2);
+        lines.add(String.format("%d successes out of %d", success, words.size()));
+        lines.add("");
+        lines.addAll(Arrays.asList(result));
+        return lines;
     }
 
-    private int countMetric(List<String> result) {
-        int success = 0;
-        for (int i = 0; i < words_size; i++) {
+    // result[i] gets the line of the question i, successes are counted per thread and summed up.
+    private int countMetric(List<List<String>> words, String[] result) {
+        return IntStream.range(0, words.size()).parallel().collect(() -> new int[1], (success, i) -> {
             if (model.isWordsListInVocab(words.get(i))) {
                 final String w1 = words.get(i).get(0);
                 final String w2 = words.get(i).get(1);
@@ -60,18 +44,12 @@ public class CloserFurtherMetric extends QualityMetric {
                 final Vec v2 = model.getVectorByWord(w2);
                 final Vec v3 = model.getVectorByWord(w3);
                 final boolean suc = model.getDistance(v1, v2) > model.getDistance(v1, v3);
-                result.add(resultToString(suc, w1, w2, w3));
-                if (suc) success++;
+                result[i] = resultToString(suc, w1, w2, w3);
+                if (suc) success[0]++;
             } else {
-                List<String> excludes = new ArrayList<>();
-                for (String word : words.get(i)) {
-                    if (!model.isWordInVocab(word))
-                        excludes.add(word);
-                }
-                result.add("WORDS " + String.join(", ", excludes) + " ARE NOT IN VOCABULARY!");
+                result[i] = notInVocabulary(words.get(i));
             }
-        }
-        return success;
+        }, (a, b) -> a[0] += b[0])[0];
     }
 
     private String resultToString(boolean res, String w1, String w2, String w3) {
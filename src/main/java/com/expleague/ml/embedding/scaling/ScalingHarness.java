@@ -0,0 +1,331 @@
+package com.expleague.ml.embedding.scaling;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.Model;
+import com.expleague.ml.embedding.ModelParameters;
+import com.expleague.ml.embedding.Word2Vec;
+import com.expleague.ml.embedding.quality_metrics.impl.ArithmeticMetric;
+import com.expleague.ml.embedding.quality_metrics.impl.CloserFurtherMetric;
+import com.expleague.ml.embedding.text_utils.Vocabulary;
+import com.expleague.ml.embedding.text_utils.ZipfCorpus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+// End-to-end scaling runs on synthetic corpora. For every combination of the settings Word2Vec goes through
+// vocabulary, cooccurrences, training, saving and evaluation of the saved model (loaded in mode 1) on generated
+// analogy and closer-further questions. Each stage is a row of a CSV report: wall time, peak resident set
+// and peak heap of the stage, vocabulary size and non-zeroes of the run. Corpora are Zipf texts generated once
+// per size into the work directory, so nothing needs the network or data/.
+//
+// Peak RSS is VmHWM of /proc/self/status, reset before every stage through /proc/self/clear_refs (Linux 4.0+);
+// where it can't be reset it is the peak of the process so far, -1 without procfs. The JVM keeps the heap
+// it has grown, so the RSS of a stage includes what earlier stages left committed. Peak heap is the sum of
+// the peaks of the heap pools. With fork every combination runs in a fresh JVM, so one doesn't inherit
+// the heap grown by another:
+//
+//   java -cp ... com.expleague.ml.embedding.scaling.ScalingHarness --work /tmp/scaling --report scaling.csv \
+//       --tokens 1000000,10000000 --dims 50,200 --threads 1,4 --models GLOVE,DECOMP --fork --jvm-args -Xmx16g
+public class ScalingHarness {
+    public static final String HEADER = "model,tokens,zipf_words,window,dim,threads,iters,stage,"
+        + "wall_ms,peak_rss_mb,peak_heap_mb,vocabulary,non_zeroes";
+
+    private interface Stage {
+        void run() throws IOException;
+    }
+
+    private Path workDir = Paths.get("scaling");
+    private long[] tokens = {1_000_000};
+    private int[] zipfWords = {50_000};
+    private double exponent = 1.0;
+    private int[] windows = {15};
+    private int[] dims = {50};
+    private int[] threads = {Runtime.getRuntime().availableProcessors()};
+    private String[] models = {"GLOVE"};
+    private int trainingIters = 5;
+    private int questions = 1000;
+    private boolean fork = false;
+    private List<String> jvmArgs = new ArrayList<>();
+
+    public ScalingHarness setWorkDir(Path workDir) {
+        this.workDir = workDir;
+        return this;
+    }
+
+    public ScalingHarness setTokens(long... tokens) {
+        this.tokens = tokens;
+        return this;
+    }
+
+    // Distinct words the generator draws from, the vocabulary keeps those occurring often enough.
+    public ScalingHarness setZipfWords(int... zipfWords) {
+        this.zipfWords = zipfWords;
+        return this;
+    }
+
+    public ScalingHarness setExponent(double exponent) {
+        this.exponent = exponent;
+        return this;
+    }
+
+    // Left and right window alike.
+    public ScalingHarness setWindows(int... windows) {
+        this.windows = windows;
+        return this;
+    }
+
+    // GLOVE vector size, DECOMP symmetric size with a skew-symmetric part of a fifth of it.
+    public ScalingHarness setDims(int... dims) {
+        this.dims = dims;
+        return this;
+    }
+
+    public ScalingHarness setThreads(int... threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public ScalingHarness setModels(String... models) {
+        this.models = models;
+        return this;
+    }
+
+    public ScalingHarness setTrainingIters(int trainingIters) {
+        this.trainingIters = trainingIters;
+        return this;
+    }
+
+    // Questions in each of the generated metrics files.
+    public ScalingHarness setQuestions(int questions) {
+        this.questions = questions;
+        return this;
+    }
+
+    public ScalingHarness setFork(boolean fork) {
+        this.fork = fork;
+        return this;
+    }
+
+    // Options of the forked JVMs, e.g. -Xmx.
+    public ScalingHarness setJvmArgs(List<String> jvmArgs) {
+        this.jvmArgs = jvmArgs;
+        return this;
+    }
+
+    // Runs all combinations and writes the report, rows of a combination are appended as soon as it is done.
+    public void run(Path report) throws IOException {
+        Files.createDirectories(workDir);
+        Files.write(report, (HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+        for (String model : models) {
+            for (long t : tokens) {
+                for (int words : zipfWords) {
+                    for (int window : windows) {
+                        for (int dim : dims) {
+                            for (int th : threads) {
+                                final List<String> rows = fork
+                                    ? runForked(model, t, words, window, dim, th)
+                                    : runOne(model, t, words, window, dim, th);
+                                try (Writer out = Files.newBufferedWriter(report, StandardOpenOption.APPEND)) {
+                                    for (String row : rows)
+                                        out.append(row).append('\n');
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private List<String> runOne(String model, long tokens, int words, int window, int dim, int threads) throws IOException {
+        final String name = model + "-" + tokens + "-" + words + "-w" + window + "-d" + dim + "-t" + threads;
+        System.out.println("Scaling run " + name);
+        final Path corpus = corpus(tokens, words);
+        final Path modelDir = workDir.resolve(name);
+        Files.createDirectories(modelDir);
+        final ModelParameters parameters = new ModelParameters.Builder(corpus.toString())
+            .setModelName(model)
+            .setGloveVecSize(dim)
+            .setSymSize(dim)
+            .setSkewSize(Math.max(1, dim / 5))
+            .setLeftWindow(window)
+            .setRightWindow(window)
+            .setThreads(threads)
+            .setTrainingIters(trainingIters)
+            .build();
+
+        final Word2Vec word2Vec = new Word2Vec();
+        final Word2Vec.ModelTrainer trainer = word2Vec.createTrainer();
+        final List<String[]> stages = new ArrayList<>();
+        stages.add(measure("vocabulary", () -> trainer.buildVocab(parameters)));
+        stages.add(measure("cooccurrences", () -> trainer.buildCooccurences(parameters)));
+        stages.add(measure("training", () -> trainer.trainModel(parameters)));
+        stages.add(measure("saving", () -> word2Vec.saveModel(modelDir.toString())));
+
+        final Path results = modelDir.resolve("metrics");
+        final Path[] names = writeQuestions(modelDir, results);
+        stages.add(measure("evaluation", () -> {
+            final Word2Vec saved = new Word2Vec();
+            saved.loadModel(modelDir.toString(), 1);
+            final Model evaluated = saved.getModel();
+            new ArithmeticMetric(evaluated).setThreads(threads).measure(names[0].toString(), results.toString());
+            new CloserFurtherMetric(evaluated).setThreads(threads).measure(names[1].toString(), results.toString());
+        }));
+
+        final String prefix = String.join(",", model, Long.toString(tokens), Integer.toString(words),
+            Integer.toString(window), Integer.toString(dim), Integer.toString(threads), Integer.toString(trainingIters));
+        final String suffix = word2Vec.vocabSize() + "," + word2Vec.cooccurencesNonZeroes();
+        return stages.stream()
+            .map(stage -> prefix + "," + String.join(",", stage) + "," + suffix)
+            .collect(Collectors.toList());
+    }
+
+    private List<String> runForked(String model, long tokens, int words, int window, int dim, int threads) throws IOException {
+        final Path report = Files.createTempFile(workDir, "scaling", ".csv");
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), ScalingHarness.class.getName(),
+            "--work", workDir.toString(), "--report", report.toString(),
+            "--models", model, "--tokens", Long.toString(tokens), "--zipf-words", Integer.toString(words),
+            "--exponent", Double.toString(exponent), "--windows", Integer.toString(window),
+            "--dims", Integer.toString(dim), "--threads", Integer.toString(threads),
+            "--iters", Integer.toString(trainingIters), "--questions", Integer.toString(questions)));
+        try {
+            final int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (exit != 0)
+                throw new IOException("Scaling run of " + model + " on " + tokens + " tokens failed with exit code " + exit + ".");
+            final List<String> lines = Files.readAllLines(report);
+            return lines.subList(1, lines.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a scaling run.");
+        } finally {
+            Files.deleteIfExists(report);
+        }
+    }
+
+    private Path corpus(long tokens, int words) throws IOException {
+        final Path path = workDir.resolve("zipf-" + words + "-" + exponent + "-" + tokens + ".txt");
+        if (!Files.exists(path)) {
+            final Path temporary = Files.createTempFile(workDir, "zipf", ".tmp");
+            new ZipfCorpus().setVocabularySize(words).setExponent(exponent).write(temporary, tokens);
+            Files.move(temporary, path);
+        }
+        return path;
+    }
+
+    // Analogy and closer-further questions on random words of the saved vocabulary, with the files naming them.
+    // The answers are meaningless on Zipf text, only the work of answering them counts.
+    private Path[] writeQuestions(Path modelDir, Path results) throws IOException {
+        Files.createDirectories(results);
+        final List<String> vocabulary = Vocabulary.read(modelDir.resolve("vocab.txt")).getEntries();
+        final FastRandom rng = new FastRandom(100500);
+        final Path analogies = modelDir.resolve("analogies.txt");
+        final Path closerFurther = modelDir.resolve("closer-further.txt");
+        try (Writer a = Files.newBufferedWriter(analogies); Writer c = Files.newBufferedWriter(closerFurther)) {
+            a.append(Integer.toString(questions)).append('\n');
+            c.append(Integer.toString(questions)).append('\n');
+            for (int q = 0; q < questions; q++) {
+                a.append(randomWords(vocabulary, rng, 4)).append('\n');
+                c.append(randomWords(vocabulary, rng, 3)).append('\n');
+            }
+        }
+        final Path analogyNames = modelDir.resolve("analogy-files.txt");
+        final Path closerFurtherNames = modelDir.resolve("closer-further-files.txt");
+        Files.write(analogyNames, Arrays.asList("1", analogies.toString()));
+        Files.write(closerFurtherNames, Arrays.asList("1", closerFurther.toString()));
+        return new Path[]{analogyNames, closerFurtherNames};
+    }
+
+    private static String randomWords(List<String> vocabulary, FastRandom rng, int count) {
+        final StringBuilder line = new StringBuilder();
+        for (int w = 0; w < count; w++)
+            line.append(w > 0 ? " " : "").append(vocabulary.get(rng.nextInt(vocabulary.size())));
+        return line.toString();
+    }
+
+    // stage, wall ms, peak RSS MB, peak heap MB
+    private static String[] measure(String name, Stage stage) throws IOException {
+        System.gc();
+        final boolean reset = resetPeakRss();
+        final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .collect(Collectors.toList());
+        pools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        final long start = System.nanoTime();
+        stage.run();
+        final long wall = System.nanoTime() - start;
+        final long heap = pools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        final long rss = peakRss();
+        System.out.println("Stage " + name + " took " + wall / 1_000_000 + " ms, peak RSS "
+            + (rss < 0 ? "unknown" : (rss >> 20) + " MB" + (reset ? "" : " (process peak)")) + ", peak heap " + (heap >> 20) + " MB");
+        return new String[]{name, String.format(Locale.ROOT, "%.1f", wall / 1e6),
+            rss < 0 ? "-1" : Long.toString(rss >> 20), Long.toString(heap >> 20)};
+    }
+
+    private static boolean resetPeakRss() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final ScalingHarness harness = new ScalingHarness();
+        Path report = Paths.get("scaling.csv");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--work": harness.setWorkDir(Paths.get(args[++i])); break;
+                case "--report": report = Paths.get(args[++i]); break;
+                case "--tokens": harness.setTokens(Arrays.stream(args[++i].split(",")).mapToLong(Long::parseLong).toArray()); break;
+                case "--zipf-words": harness.setZipfWords(ints(args[++i])); break;
+                case "--exponent": harness.setExponent(Double.parseDouble(args[++i])); break;
+                case "--windows": harness.setWindows(ints(args[++i])); break;
+                case "--dims": harness.setDims(ints(args[++i])); break;
+                case "--threads": harness.setThreads(ints(args[++i])); break;
+                case "--models": harness.setModels(args[++i].split(",")); break;
+                case "--iters": harness.setTrainingIters(Integer.parseInt(args[++i])); break;
+                case "--questions": harness.setQuestions(Integer.parseInt(args[++i])); break;
+                case "--fork": harness.setFork(true); break;
+                case "--jvm-args": harness.setJvmArgs(Arrays.asList(args[++i].trim().split("\\s+"))); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i] + ". Options: --work DIR --report FILE "
+                        + "--tokens N,.. --zipf-words N,.. --exponent S --windows N,.. --dims N,.. --threads N,.. "
+                        + "--models GLOVE,DECOMP --iters N --questions N --fork --jvm-args \"-Xmx..\"");
+            }
+        }
+        harness.run(report);
+    }
+
+    private static int[] ints(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
@@ -0,0 +1,64 @@
+package com.expleague.ml.embedding.telemetry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+// A header and a row per epoch, flushed right away so that the file can be followed during training.
+// Worker shares are joined by ';' in one column, their number depends on the scheduler.
+public class CsvTrainingListener implements TrainingListener {
+    static final String HEADER = "model,epoch,wall_ms,non_zeroes,non_zeroes_per_second,loss,shuffle_ms,update_ms,"
+        + "worker_shares,gradient_mean,gradient_p50,gradient_p90,gradient_p99,gradient_max,"
+        + "heap_used,heap_committed,heap_max";
+
+    private final Writer out;
+
+    public CsvTrainingListener(Path path) throws IOException {
+        this(Files.newBufferedWriter(path));
+    }
+
+    public CsvTrainingListener(Writer out) throws IOException {
+        this.out = out;
+        out.append(HEADER).append('\n');
+        out.flush();
+    }
+
+    @Override
+    public void epochFinished(EpochMetrics metrics) {
+        final String shares = Arrays.stream(metrics.getWorkerShares())
+            .mapToObj(share -> String.format(Locale.ROOT, "%.4f", share))
+            .collect(Collectors.joining(";"));
+        try {
+            out.append(metrics.getModel()).append(',')
+                .append(Integer.toString(metrics.getEpoch())).append(',')
+                .append(Double.toString(metrics.getWallNanos() / 1e6)).append(',')
+                .append(Long.toString(metrics.getNonZeroes())).append(',')
+                .append(Double.toString(metrics.getNonZeroesPerSecond())).append(',')
+                .append(Double.toString(metrics.getLoss())).append(',')
+                .append(Double.toString(metrics.getShuffleNanos() / 1e6)).append(',')
+                .append(Double.toString(metrics.getUpdateNanos() / 1e6)).append(',')
+                .append(shares).append(',')
+                .append(Double.toString(metrics.getGradientMean())).append(',')
+                .append(Double.toString(metrics.getGradientP50())).append(',')
+                .append(Double.toString(metrics.getGradientP90())).append(',')
+                .append(Double.toString(metrics.getGradientP99())).append(',')
+                .append(Double.toString(metrics.getGradientMax())).append(',')
+                .append(Long.toString(metrics.getHeapUsed())).append(',')
+                .append(Long.toString(metrics.getHeapCommitted())).append(',')
+                .append(Long.toString(metrics.getHeapMax())).append('\n');
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
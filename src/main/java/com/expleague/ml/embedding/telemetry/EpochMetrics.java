@@ -0,0 +1,129 @@
+package com.expleague.ml.embedding.telemetry;
+
+// What a model function measured during one epoch. Times of shuffling and of SGD steps are summed
+// over the threads that did them, so with several workers they may exceed the wall time of the epoch.
+// Gradients are |f(Xij) * (prediction - log Xij)|, the factor that scales every update of a step;
+// their quantiles come from a log-scale histogram and are accurate to about 10%.
+public class EpochMetrics {
+    private final String model;
+    private final int epoch;
+    private final long wallNanos;
+    private final long nonZeroes;
+    private final double loss;
+    private final long shuffleNanos;
+    private final long updateNanos;
+    private final long[] workerEntries;
+    private final double gradientMean;
+    private final double gradientP50;
+    private final double gradientP90;
+    private final double gradientP99;
+    private final double gradientMax;
+    private final long heapUsed;
+    private final long heapCommitted;
+    private final long heapMax;
+
+    public EpochMetrics(String model, int epoch, long wallNanos, long nonZeroes, double loss,
+                        long shuffleNanos, long updateNanos, long[] workerEntries,
+                        double gradientMean, double gradientP50, double gradientP90, double gradientP99,
+                        double gradientMax, long heapUsed, long heapCommitted, long heapMax) {
+        this.model = model;
+        this.epoch = epoch;
+        this.wallNanos = wallNanos;
+        this.nonZeroes = nonZeroes;
+        this.loss = loss;
+        this.shuffleNanos = shuffleNanos;
+        this.updateNanos = updateNanos;
+        this.workerEntries = workerEntries;
+        this.gradientMean = gradientMean;
+        this.gradientP50 = gradientP50;
+        this.gradientP90 = gradientP90;
+        this.gradientP99 = gradientP99;
+        this.gradientMax = gradientMax;
+        this.heapUsed = heapUsed;
+        this.heapCommitted = heapCommitted;
+        this.heapMax = heapMax;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    // Number of the epoch, counting from 0 over resumed runs.
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    public long getNonZeroes() {
+        return nonZeroes;
+    }
+
+    public double getNonZeroesPerSecond() {
+        return nonZeroes * 1e9 / Math.max(1, wallNanos);
+    }
+
+    // Weighted squared error per non-zero, as printed after each iteration.
+    public double getLoss() {
+        return loss;
+    }
+
+    public long getShuffleNanos() {
+        return shuffleNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    // Entries trained by each worker thread that did any work.
+    public long[] getWorkerEntries() {
+        return workerEntries.clone();
+    }
+
+    // Fractions of the epoch trained by each worker, they sum to 1.
+    public double[] getWorkerShares() {
+        long total = 0;
+        for (long entries : workerEntries)
+            total += entries;
+        final double[] shares = new double[workerEntries.length];
+        for (int t = 0; t < shares.length; t++)
+            shares[t] = (double) workerEntries[t] / Math.max(1, total);
+        return shares;
+    }
+
+    public double getGradientMean() {
+        return gradientMean;
+    }
+
+    public double getGradientP50() {
+        return gradientP50;
+    }
+
+    public double getGradientP90() {
+        return gradientP90;
+    }
+
+    public double getGradientP99() {
+        return gradientP99;
+    }
+
+    public double getGradientMax() {
+        return gradientMax;
+    }
+
+    // Heap in use after the epoch, garbage included.
+    public long getHeapUsed() {
+        return heapUsed;
+    }
+
+    public long getHeapCommitted() {
+        return heapCommitted;
+    }
+
+    public long getHeapMax() {
+        return heapMax;
+    }
+}
@@ -0,0 +1,68 @@
+package com.expleague.ml.embedding.telemetry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A JSON object per epoch and line, flushed right away. Times are in milliseconds, heap in bytes,
+// non-finite numbers (a diverged loss) are written as null.
+public class JsonLinesTrainingListener implements TrainingListener {
+    private final Writer out;
+
+    public JsonLinesTrainingListener(Path path) throws IOException {
+        this(Files.newBufferedWriter(path));
+    }
+
+    public JsonLinesTrainingListener(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void epochFinished(EpochMetrics metrics) {
+        final StringBuilder line = new StringBuilder(512);
+        line.append("{\"model\":\"").append(metrics.getModel()).append('"')
+            .append(",\"epoch\":").append(metrics.getEpoch())
+            .append(",\"wall_ms\":").append(number(metrics.getWallNanos() / 1e6))
+            .append(",\"non_zeroes\":").append(metrics.getNonZeroes())
+            .append(",\"non_zeroes_per_second\":").append(number(metrics.getNonZeroesPerSecond()))
+            .append(",\"loss\":").append(number(metrics.getLoss()))
+            .append(",\"shuffle_ms\":").append(number(metrics.getShuffleNanos() / 1e6))
+            .append(",\"update_ms\":").append(number(metrics.getUpdateNanos() / 1e6))
+            .append(",\"worker_entries\":[");
+        final long[] entries = metrics.getWorkerEntries();
+        for (int t = 0; t < entries.length; t++)
+            line.append(t > 0 ? "," : "").append(entries[t]);
+        line.append("],\"worker_shares\":[");
+        final double[] shares = metrics.getWorkerShares();
+        for (int t = 0; t < shares.length; t++)
+            line.append(t > 0 ? "," : "").append(number(shares[t]));
+        line.append("],\"gradient\":{")
+            .append("\"mean\":").append(number(metrics.getGradientMean()))
+            .append(",\"p50\":").append(number(metrics.getGradientP50()))
+            .append(",\"p90\":").append(number(metrics.getGradientP90()))
+            .append(",\"p99\":").append(number(metrics.getGradientP99()))
+            .append(",\"max\":").append(number(metrics.getGradientMax()))
+            .append("},\"heap\":{")
+            .append("\"used\":").append(metrics.getHeapUsed())
+            .append(",\"committed\":").append(metrics.getHeapCommitted())
+            .append(",\"max\":").append(metrics.getHeapMax())
+            .append("}}\n");
+        try {
+            out.append(line);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,14 @@
+package com.expleague.ml.embedding.telemetry;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Receives metrics of every finished epoch on the training thread, between epochs, so it should be quick.
+// Listeners are closed by whoever created them, a training run doesn't own them.
+public interface TrainingListener extends Closeable {
+    void epochFinished(EpochMetrics metrics);
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,186 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.Vec;
+import com.expleague.commons.math.vectors.impl.mx.VecBasedMx;
+import com.expleague.commons.math.vectors.impl.vectors.ArrayVec;
+import com.expleague.ml.embedding.exceptions.LoadingModelException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Binary model file, all numbers are little-endian:
+//   int magic "W2VB", int version, int value bytes (4 = float, 8 = double), int vocabulary size,
+//   int type length, type name in UTF-8, zero padding to 8 bytes,
+//   then blocks: int rows, int columns, rows * columns values in row-major order.
+// A vector is a block with one row.
+public class BinaryModelIO {
+    public static final int MAGIC = 0x42563257;
+    public static final int VERSION = 1;
+    private static final int CHUNK = 1 << 20;
+    private static final long MAX_MAPPING = 1L << 30;
+
+    public static String readModelType(Path path) throws IOException {
+        try (Reader reader = new Reader(path)) {
+            return reader.getModelType();
+        }
+    }
+
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        private final boolean singlePrecision;
+
+        public Writer(Path path, String modelType, int vocabSize, boolean singlePrecision) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            this.singlePrecision = singlePrecision;
+            final byte[] type = modelType.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(singlePrecision ? 4 : 8).putInt(vocabSize).putInt(type.length);
+            buffer.put(type);
+            while (buffer.position() % 8 != 0)
+                buffer.put((byte) 0);
+        }
+
+        public void writeVec(Vec vec) throws IOException {
+            writeHeader(1, vec.dim());
+            for (int j = 0; j < vec.dim(); j++)
+                writeValue(vec.get(j));
+        }
+
+        public void writeMx(Mx mx) throws IOException {
+            writeHeader(mx.rows(), mx.columns());
+            for (int i = 0; i < mx.rows(); i++) {
+                for (int j = 0; j < mx.columns(); j++)
+                    writeValue(mx.get(i, j));
+            }
+        }
+
+        private void writeHeader(int rows, int columns) throws IOException {
+            ensure(8);
+            buffer.putInt(rows).putInt(columns);
+        }
+
+        private void writeValue(double value) throws IOException {
+            ensure(8);
+            if (singlePrecision)
+                buffer.putFloat((float) value);
+            else
+                buffer.putDouble(value);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    // Memory-maps the file block by block, values are bulk-copied into heap matrices.
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final String modelType;
+        private final int valueBytes;
+        private final int vocabSize;
+        private long position;
+
+        public Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            final ByteBuffer header = map(0, Math.min(channel.size(), 4096));
+            if (header.remaining() < 20 || header.getInt() != MAGIC)
+                throw new LoadingModelException(path + " is not a binary model file.");
+            final int version = header.getInt();
+            if (version != VERSION)
+                throw new LoadingModelException("Unsupported binary model version " + version + " in " + path + ".");
+            valueBytes = header.getInt();
+            vocabSize = header.getInt();
+            final byte[] type = new byte[header.getInt()];
+            header.get(type);
+            modelType = new String(type, StandardCharsets.UTF_8);
+            position = (header.position() + 7) / 8 * 8;
+        }
+
+        public String getModelType() {
+            return modelType;
+        }
+
+        public int getVocabSize() {
+            return vocabSize;
+        }
+
+        public boolean isSinglePrecision() {
+            return valueBytes == 4;
+        }
+
+        public boolean hasNext() throws IOException {
+            return position < channel.size();
+        }
+
+        public Vec readVec() throws IOException {
+            final int[] shape = new int[2];
+            return new ArrayVec(readBlock(shape));
+        }
+
+        public Mx readMx() throws IOException {
+            final int[] shape = new int[2];
+            final double[] data = readBlock(shape);
+            return new VecBasedMx(shape[1], new ArrayVec(data));
+        }
+
+        private double[] readBlock(int[] shape) throws IOException {
+            final ByteBuffer blockHeader = map(position, 8);
+            final int rows = blockHeader.getInt();
+            final int columns = blockHeader.getInt();
+            shape[0] = rows;
+            shape[1] = columns;
+            position += 8;
+            final double[] data = new double[rows * columns];
+            final long rowBytes = (long) columns * valueBytes;
+            final int rowsPerMapping = (int) Math.max(1, MAX_MAPPING / Math.max(1, rowBytes));
+            for (int start = 0; start < rows; start += rowsPerMapping) {
+                final int count = Math.min(rowsPerMapping, rows - start);
+                final ByteBuffer values = map(position, count * rowBytes);
+                if (valueBytes == 4) {
+                    final float[] chunk = new float[count * columns];
+                    values.asFloatBuffer().get(chunk);
+                    for (int k = 0; k < chunk.length; k++)
+                        data[start * columns + k] = chunk[k];
+                } else {
+                    values.asDoubleBuffer().get(data, start * columns, count * columns);
+                }
+                position += count * rowBytes;
+            }
+            return data;
+        }
+
+        private ByteBuffer map(long from, long size) throws IOException {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return mapped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.expleague.ml.embedding.text_utils;
+
+import java.text.BreakIterator;
+
+public class BreakIteratorTokenizer implements Tokenizer {
+    private final BreakIterator breakIterator = BreakIterator.getWordInstance();
+
+    @Override
+    public void tokenize(String line, TokenHandler handler) {
+        breakIterator.setText(line);
+        int lastIndex = breakIterator.first();
+        while (BreakIterator.DONE != lastIndex) {
+            int firstIndex = lastIndex;
+            lastIndex = breakIterator.next();
+            if (lastIndex != BreakIterator.DONE && Character.isLetterOrDigit(line.charAt(firstIndex))) {
+                final char[] word = line.substring(firstIndex, lastIndex).toLowerCase().toCharArray();
+                handler.token(word, 0, word.length);
+            }
+        }
+    }
+}
@@ -6,18 +6,31 @@ import com.expleague.commons.math.vectors.impl.mx.SparseMx;
 import com.expleague.commons.seq.CharSeq;
 import com.expleague.commons.seq.CharSeqTools;
 import com.expleague.commons.util.logging.Interval;
+import com.expleague.ml.embedding.exceptions.CooccurencesBuildingException;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.*;
-import java.text.BreakIterator;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 // Table X = {Xij}, Xij = number of times word j occures in the context of the word i.
 // If not symmetric - only looks at word's left neighbours.
 public class CooccurencesBuilder {
+  private static final int LINES_BATCH = 10000;
+
   private int leftWindow;
   private int rightWindow;
+  private int threads = 1;
+  private long memoryLimit = 0;
+  private File tempDirectory = null;
+  private Tokenizer.Type tokenizer = Tokenizer.Type.FAST;
   private Vocabulary voc;
 
   public CooccurencesBuilder setVocabulary(Vocabulary voc) {
@@ -35,31 +48,45 @@ public class CooccurencesBuilder {
     return this;
   }
 
+  // threads > 1 switches to the sharded build, its result is the same as of the single-threaded one
+  public CooccurencesBuilder setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  // memoryLimit > 0 switches buildCsr and build(reader, path) to the bounded-memory build, counts above the limit
+  // are spilled to temp files; the builds into a SparseMx reject it
+  public CooccurencesBuilder setMemoryLimit(long memoryLimit) {
+    this.memoryLimit = memoryLimit;
+    return this;
+  }
+
+  // null means the default temporary-file directory
+  public CooccurencesBuilder setTempDirectory(File tempDirectory) {
+    this.tempDirectory = tempDirectory;
+    return this;
+  }
+
+  public CooccurencesBuilder setTokenizer(Tokenizer.Type tokenizer) {
+    this.tokenizer = tokenizer;
+    return this;
+  }
+
+  // The whole matrix on the heap, so there is no bounded-memory mode: use buildCsr or build(reader, path) with a limit.
   public Mx build(BufferedReader reader) throws RuntimeException {
+    checkUnbounded();
+    if (threads > 1)
+      return buildParallel(reader);
+
     final int vocSize = this.voc.size();
     final Mx result = new SparseMx(vocSize, vocSize);
+    final Tokenizer tokenizer = this.tokenizer.create();
     Interval.start();
     String line;
     int lni = 0;
     try {
       while ((line = reader.readLine()) != null) {
-        BreakIterator breakIterator = BreakIterator.getWordInstance();
-        breakIterator.setText(line);
-        int lastIndex = breakIterator.first();
-        final TIntArrayList queue = new TIntArrayList(1000);
-
-        while (BreakIterator.DONE != lastIndex) {
-          int firstIndex = lastIndex;
-          lastIndex = breakIterator.next();
-          if (lastIndex != BreakIterator.DONE && Character.isLetterOrDigit(line.charAt(firstIndex))) {
-            final String word = line.substring(firstIndex, lastIndex);
-            int wordId = voc.wordToIndex(word);
-            if (wordId == Vocabulary.NO_ENTRY_VALUE) {
-              continue;
-            }
-            queue.add(wordId);
-          }
-        }
+        final TIntArrayList queue = readIds(line, tokenizer);
         //final SparseMx temp = new SparseMx(vocSize, vocSize);
         for (int i = 0; i < queue.size(); i++) {
           final int indexedId = queue.get(i);
@@ -88,4 +115,271 @@ public class CooccurencesBuilder {
     Interval.stopAndPrint("Cooccurrences calculated for");
     return result;
   }
-}
\ No newline at end of file
+
+  // CSR cooccurrences of the text. In the bounded-memory mode they are written to a temporary cooccurrences file
+  // and mapped back, so the heap holds the final arrays and the spill buffer but never the whole matrix in a SparseMx.
+  public CsrCooccurences buildCsr(BufferedReader reader) {
+    if (memoryLimit <= 0)
+      return CsrCooccurences.fromMx(build(reader));
+    return throughFile(writer -> build(reader, writer));
+  }
+
+  // The same over a corpus that is already tokenized to vocabulary ids, see build(stream, lineEnds).
+  public CsrCooccurences buildCsr(TIntArrayList stream, TIntArrayList lineEnds) {
+    if (memoryLimit <= 0)
+      return CsrCooccurences.fromMx(build(stream, lineEnds));
+    return throughFile(writer -> {
+      Interval.start();
+      final int spills;
+      try (CooccurencesSpiller spiller = new CooccurencesSpiller(memoryLimit, tempDirectory)) {
+        spillLines(stream, lineEnds, spiller);
+        spills = spiller.spillsCount();
+        spiller.merge(writer);
+      }
+      Interval.stopAndPrint("Cooccurrences calculated through " + spills + " spills for");
+    });
+  }
+
+  // Bounded-memory build into a cooccurrences file at path, see CooccurencesIO.
+  public void build(BufferedReader reader, Path path) {
+    try (CooccurencesIO.StreamWriter writer = new CooccurencesIO.StreamWriter(path, voc.size(), leftWindow, rightWindow)) {
+      build(reader, writer);
+    } catch (IOException e) {
+      throw new CooccurencesBuildingException("Couldn't write cooccurrences to " + path + ". " + e.getMessage());
+    }
+  }
+
+  private CsrCooccurences throughFile(Consumer<CooccurencesIO.StreamWriter> count) {
+    Path path = null;
+    try {
+      path = (tempDirectory == null ? File.createTempFile("cooccurences", ".bin")
+          : File.createTempFile("cooccurences", ".bin", tempDirectory)).toPath();
+      try (CooccurencesIO.StreamWriter writer = new CooccurencesIO.StreamWriter(path, voc.size(), leftWindow, rightWindow)) {
+        count.accept(writer);
+      }
+      try (CooccurencesIO.Reader reader = new CooccurencesIO.Reader(path)) {
+        return reader.readCsr();
+      }
+    } catch (IOException e) {
+      throw new CooccurencesBuildingException("Couldn't pass cooccurrences through a temporary file. " + e.getMessage());
+    } finally {
+      if (path != null) {
+        //noinspection ResultOfMethodCallIgnored
+        path.toFile().delete();
+      }
+    }
+  }
+
+  // Bounded-memory build: triples go through CooccurencesSpiller and reach the consumer merged and ordered by (i, j),
+  // so the consumer may stream them somewhere instead of keeping the whole matrix on the heap.
+  public void build(BufferedReader reader, CooccurencesSpiller.TripleConsumer consumer) {
+    final long limit = memoryLimit > 0 ? memoryLimit : Runtime.getRuntime().maxMemory() / 4;
+    Interval.start();
+    final Tokenizer tokenizer = this.tokenizer.create();
+    final int spills;
+    try (CooccurencesSpiller spiller = new CooccurencesSpiller(limit, tempDirectory)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final TIntArrayList queue = readIds(line, tokenizer);
+        spillWindows(queue, 0, queue.size(), spiller);
+      }
+      spills = spiller.spillsCount();
+      spiller.merge(consumer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Interval.stopAndPrint("Cooccurrences calculated through " + spills + " spills for");
+  }
+
+  // Lines are read in batches, each batch is tokenized in parallel and then counted by `threads` shards.
+  // Shard k owns rows with id % threads == k and walks the batch in the original order,
+  // so every Xij gets exactly the same sequence of additions as in the single-threaded build.
+  private Mx buildParallel(BufferedReader reader) {
+    final TIntDoubleHashMap[] rows = new TIntDoubleHashMap[this.voc.size()];
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    Interval.start();
+    try {
+      final List<String> batch = new ArrayList<>(LINES_BATCH);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        batch.add(line);
+        if (batch.size() == LINES_BATCH) {
+          countBatch(batch, rows, pool);
+          batch.clear();
+        }
+      }
+      countBatch(batch, rows, pool);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      pool.shutdown();
+    }
+
+    final Mx result = collect(rows);
+    Interval.stopAndPrint("Cooccurrences calculated for");
+    return result;
+  }
+
+  // Counts windows over a corpus that is already tokenized to vocabulary ids: line l is stream[lineEnds[l - 1], lineEnds[l]),
+  // the first one starts at 0. Honours the same modes as build(reader), buildCsr(stream, lineEnds) has the bounded one.
+  public Mx build(TIntArrayList stream, TIntArrayList lineEnds) {
+    checkUnbounded();
+    final int vocSize = this.voc.size();
+    final Mx result;
+    Interval.start();
+    if (threads > 1) {
+      final TIntDoubleHashMap[] rows = new TIntDoubleHashMap[vocSize];
+      final ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+        countShards(stream, lineEnds, rows, pool);
+      } finally {
+        pool.shutdown();
+      }
+      result = collect(rows);
+    } else {
+      result = new SparseMx(vocSize, vocSize);
+      int start = 0;
+      for (int l = 0; l < lineEnds.size(); l++) {
+        final int end = lineEnds.get(l);
+        for (int i = start; i < end; i++) {
+          final int indexedId = stream.get(i);
+          final int rightLimit = Math.min(end, i + rightWindow + 1);
+          final int leftLimit = Math.max(start, i - leftWindow);
+          for (int idx = leftLimit; idx < rightLimit; idx++) {
+            if (idx == i)
+              continue;
+            result.adjust(indexedId, stream.get(idx), 1./Math.abs(i - idx));
+          }
+        }
+        start = end;
+      }
+    }
+    Interval.stopAndPrint("Cooccurrences calculated for");
+    return result;
+  }
+
+  private void checkUnbounded() {
+    if (memoryLimit > 0)
+      throw new CooccurencesBuildingException("A memory limit needs a build into CSR arrays or a file, a SparseMx has no bound.");
+  }
+
+  private Mx collect(TIntDoubleHashMap[] rows) {
+    final Mx result = new SparseMx(rows.length, rows.length);
+    for (int i = 0; i < rows.length; i++) {
+      if (rows[i] == null)
+        continue;
+      final int[] columns = rows[i].keys();
+      Arrays.sort(columns);
+      for (int j : columns) {
+        result.set(i, j, rows[i].get(j));
+      }
+      rows[i] = null;
+    }
+    return result;
+  }
+
+  private void spillLines(TIntArrayList stream, TIntArrayList lineEnds, CooccurencesSpiller spiller) {
+    int start = 0;
+    for (int l = 0; l < lineEnds.size(); l++) {
+      spillWindows(stream, start, lineEnds.get(l), spiller);
+      start = lineEnds.get(l);
+    }
+  }
+
+  // windows of the line ids[start, end)
+  private void spillWindows(TIntArrayList ids, int start, int end, CooccurencesSpiller spiller) {
+    for (int i = start; i < end; i++) {
+      final int indexedId = ids.get(i);
+      final int rightLimit = Math.min(end, i + rightWindow + 1);
+      final int leftLimit = Math.max(start, i - leftWindow);
+      for (int idx = leftLimit; idx < rightLimit; idx++) {
+        if (idx == i)
+          continue;
+        spiller.add(indexedId, ids.get(idx), 1./Math.abs(i - idx));
+      }
+    }
+  }
+
+  private void countBatch(List<String> batch, TIntDoubleHashMap[] rows, ExecutorService pool) {
+    if (batch.isEmpty())
+      return;
+    final TIntArrayList[] queues = new TIntArrayList[batch.size()];
+    final List<Callable<Void>> tokenizers = new ArrayList<>(threads);
+    final int step = (batch.size() + threads - 1) / threads;
+    for (int start = 0; start < batch.size(); start += step) {
+      final int from = start;
+      final int to = Math.min(batch.size(), start + step);
+      tokenizers.add(() -> {
+        final Tokenizer tokenizer = this.tokenizer.create();
+        for (int l = from; l < to; l++)
+          queues[l] = readIds(batch.get(l), tokenizer);
+        return null;
+      });
+    }
+    runAll(pool, tokenizers);
+    final TIntArrayList stream = new TIntArrayList();
+    final TIntArrayList lineEnds = new TIntArrayList(queues.length);
+    for (TIntArrayList queue : queues) {
+      stream.addAll(queue);
+      lineEnds.add(stream.size());
+    }
+    countShards(stream, lineEnds, rows, pool);
+  }
+
+  private void countShards(TIntArrayList stream, TIntArrayList lineEnds, TIntDoubleHashMap[] rows, ExecutorService pool) {
+    final List<Callable<Void>> shards = new ArrayList<>(threads);
+    for (int k = 0; k < threads; k++) {
+      final int shard = k;
+      shards.add(() -> {
+        int start = 0;
+        for (int l = 0; l < lineEnds.size(); l++) {
+          final int end = lineEnds.get(l);
+          for (int i = start; i < end; i++) {
+            final int indexedId = stream.get(i);
+            if (indexedId % threads != shard)
+              continue;
+            TIntDoubleHashMap row = rows[indexedId];
+            if (row == null) {
+              row = new TIntDoubleHashMap();
+              rows[indexedId] = row;
+            }
+            final int rightLimit = Math.min(end, i + rightWindow + 1);
+            final int leftLimit = Math.max(start, i - leftWindow);
+            for (int idx = leftLimit; idx < rightLimit; idx++) {
+              if (idx == i)
+                continue;
+              final double value = 1./Math.abs(i - idx);
+              row.adjustOrPutValue(stream.get(idx), value, value);
+            }
+          }
+          start = end;
+        }
+        return null;
+      });
+    }
+    runAll(pool, shards);
+  }
+
+  private static void runAll(ExecutorService pool, List<Callable<Void>> tasks) {
+    try {
+      for (Future<Void> future : pool.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CooccurencesBuildingException("Cooccurrences building was interrupted.");
+    } catch (ExecutionException e) {
+      throw new CooccurencesBuildingException("Cooccurrences building failed. " + e.getCause().getMessage());
+    }
+  }
+
+  private TIntArrayList readIds(String line, Tokenizer tokenizer) {
+    final TIntArrayList queue = new TIntArrayList(1000);
+    tokenizer.tokenize(line, (buffer, offset, length) -> {
+      final int wordId = voc.wordToIndex(buffer, offset, length);
+      if (wordId != Vocabulary.NO_ENTRY_VALUE)
+        queue.add(wordId);
+    });
+    return queue;
+  }
+}
@@ -0,0 +1,360 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.VecIterator;
+import com.expleague.commons.math.vectors.impl.mx.SparseMx;
+import com.expleague.commons.math.vectors.impl.vectors.SparseVec;
+import com.expleague.ml.embedding.exceptions.CooccurencesBuildingException;
+import com.expleague.ml.embedding.exceptions.LoadingModelException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+// Cooccurrences in the CSR layout, all numbers are little-endian:
+//   int magic "W2VC", int version, int rows, int left window, int right window, int padding, long non-zeroes,
+//   long[rows + 1] row offsets, int[non-zeroes] column indices, double[non-zeroes] values.
+// Only non-zeroes are visited on saving, loading is either streaming or memory-mapped.
+public class CooccurencesIO {
+    public static final int MAGIC = 0x43563257;
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int CHUNK = 1 << 20;
+    private static final long MAX_MAPPING = 1L << 30;
+
+    public static void write(Path path, Mx cooccurences, int leftWindow, int rightWindow) throws IOException {
+        final int rows = cooccurences.rows();
+        final long[] rowPtr = new long[rows + 1];
+        for (int i = 0; i < rows; i++) {
+            final VecIterator nz = cooccurences.row(i).nonZeroes();
+            long count = 0;
+            while (nz.advance()) {
+                if (nz.value() != 0)
+                    count++;
+            }
+            rowPtr[i + 1] = rowPtr[i] + count;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(leftWindow).putInt(rightWindow).putInt(0);
+            buffer.putLong(rowPtr[rows]);
+            for (long offset : rowPtr) {
+                ensure(channel, buffer, 8);
+                buffer.putLong(offset);
+            }
+            for (int i = 0; i < rows; i++) {
+                final VecIterator nz = cooccurences.row(i).nonZeroes();
+                while (nz.advance()) {
+                    if (nz.value() == 0)
+                        continue;
+                    ensure(channel, buffer, 4);
+                    buffer.putInt(nz.index());
+                }
+            }
+            for (int i = 0; i < rows; i++) {
+                final VecIterator nz = cooccurences.row(i).nonZeroes();
+                while (nz.advance()) {
+                    if (nz.value() == 0)
+                        continue;
+                    ensure(channel, buffer, 8);
+                    buffer.putDouble(nz.value());
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    public static void write(Path path, CsrCooccurences cooccurences, int leftWindow, int rightWindow) throws IOException {
+        final int rows = cooccurences.rows();
+        final int[] rowPtr = cooccurences.rowPtr();
+        final int[] columns = cooccurences.columns();
+        final float[] values = cooccurences.values();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(leftWindow).putInt(rightWindow).putInt(0);
+            buffer.putLong(cooccurences.nonZeroes());
+            for (int offset : rowPtr) {
+                ensure(channel, buffer, 8);
+                buffer.putLong(offset);
+            }
+            for (int column : columns) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(column);
+            }
+            for (float value : values) {
+                ensure(channel, buffer, 8);
+                buffer.putDouble(value);
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    // Writes a cooccurrences file from triples that come ordered by (i, j), as CooccurencesSpiller.merge gives them.
+    // Only the row offsets stay in memory: columns and values go to two temporary files next to path,
+    // which are appended after the offsets on close().
+    public static class StreamWriter implements CooccurencesSpiller.TripleConsumer, Closeable {
+        private final Path path;
+        private final int leftWindow;
+        private final int rightWindow;
+        private final long[] rowPtr;
+        private final Path columnsFile;
+        private final Path valuesFile;
+        private final FileChannel columnsChannel;
+        private final FileChannel valuesChannel;
+        private final ByteBuffer columns = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer values = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        private int lastRow = 0;
+        private int lastColumn = -1;
+
+        public StreamWriter(Path path, int rows, int leftWindow, int rightWindow) throws IOException {
+            this.path = path;
+            this.leftWindow = leftWindow;
+            this.rightWindow = rightWindow;
+            this.rowPtr = new long[rows + 1];
+            final Path directory = path.toAbsolutePath().getParent();
+            columnsFile = Files.createTempFile(directory, "columns", ".tmp");
+            valuesFile = Files.createTempFile(directory, "values", ".tmp");
+            columnsChannel = FileChannel.open(columnsFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            valuesChannel = FileChannel.open(valuesFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+
+        @Override
+        public void accept(int i, int j, double x) {
+            if (x == 0)
+                return;
+            if (i < lastRow || (i == lastRow && j <= lastColumn))
+                throw new CooccurencesBuildingException("Cooccurrences should come ordered by (i, j), got (" + i + ", " + j
+                    + ") after (" + lastRow + ", " + lastColumn + ").");
+            lastRow = i;
+            lastColumn = j;
+            rowPtr[i + 1]++;
+            try {
+                ensure(columnsChannel, columns, 4);
+                columns.putInt(j);
+                ensure(valuesChannel, values, 8);
+                values.putDouble(x);
+            } catch (IOException e) {
+                throw new CooccurencesBuildingException("Couldn't write cooccurrences to " + path + ". " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush(columnsChannel, columns);
+                flush(valuesChannel, values);
+                final int rows = rowPtr.length - 1;
+                for (int i = 0; i < rows; i++)
+                    rowPtr[i + 1] += rowPtr[i];
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                    final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(leftWindow).putInt(rightWindow).putInt(0);
+                    buffer.putLong(rowPtr[rows]);
+                    for (long offset : rowPtr) {
+                        ensure(channel, buffer, 8);
+                        buffer.putLong(offset);
+                    }
+                    flush(channel, buffer);
+                    append(columnsChannel, channel);
+                    append(valuesChannel, channel);
+                }
+            } finally {
+                columnsChannel.close();
+                valuesChannel.close();
+                Files.deleteIfExists(columnsFile);
+                Files.deleteIfExists(valuesFile);
+            }
+        }
+
+        private static void append(FileChannel source, FileChannel target) throws IOException {
+            final long size = source.size();
+            for (long position = 0; position < size; )
+                position += source.transferTo(position, size - position, target);
+        }
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            flush(channel, buffer);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final int rows;
+        private final int leftWindow;
+        private final int rightWindow;
+        private final long nonZeroes;
+
+        public Reader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if (header.getInt() != MAGIC)
+                throw new LoadingModelException(path + " is not a cooccurrences file.");
+            final int version = header.getInt();
+            if (version != VERSION)
+                throw new LoadingModelException("Unsupported cooccurrences file version " + version + " in " + path + ".");
+            rows = header.getInt();
+            leftWindow = header.getInt();
+            rightWindow = header.getInt();
+            header.getInt();
+            nonZeroes = header.getLong();
+        }
+
+        public int rows() {
+            return rows;
+        }
+
+        public int leftWindow() {
+            return leftWindow;
+        }
+
+        public int rightWindow() {
+            return rightWindow;
+        }
+
+        public long nonZeroes() {
+            return nonZeroes;
+        }
+
+        // Reads the sections sequentially through a small buffer.
+        public Mx readStreaming() throws IOException {
+            final long[] rowPtr = readRowPtr();
+            final SparseVec[] result = new SparseVec[rows];
+            final ByteBuffer columns = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            final ByteBuffer values = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            long columnsPosition = columnsOffset();
+            long valuesPosition = valuesOffset();
+            columns.flip();
+            values.flip();
+            for (int i = 0; i < rows; i++) {
+                final int length = (int) (rowPtr[i + 1] - rowPtr[i]);
+                final int[] indices = new int[length];
+                final double[] data = new double[length];
+                for (int k = 0; k < length; k++) {
+                    if (columns.remaining() < 4) {
+                        columnsPosition = refill(columns, columnsPosition);
+                    }
+                    indices[k] = columns.getInt();
+                    if (values.remaining() < 8) {
+                        valuesPosition = refill(values, valuesPosition);
+                    }
+                    data[k] = values.getDouble();
+                }
+                result[i] = new SparseVec(rows, indices, data);
+            }
+            return new SparseMx(result);
+        }
+
+        // Maps the column and value sections in windows of whole rows and fills the rows of a window in parallel.
+        public Mx readMapped() throws IOException {
+            final long[] rowPtr = readRowPtr();
+            final SparseVec[] result = new SparseVec[rows];
+            int start = 0;
+            while (start < rows) {
+                int end = start + 1;
+                while (end < rows && (rowPtr[end + 1] - rowPtr[start]) * 8 <= MAX_MAPPING)
+                    end++;
+                final long first = rowPtr[start];
+                final long count = rowPtr[end] - first;
+                final ByteBuffer columns = map(columnsOffset() + first * 4, count * 4);
+                final ByteBuffer values = map(valuesOffset() + first * 8, count * 8);
+                IntStream.range(start, end).parallel().forEach(i -> {
+                    final int from = (int) (rowPtr[i] - first);
+                    final int length = (int) (rowPtr[i + 1] - rowPtr[i]);
+                    final int[] indices = new int[length];
+                    final double[] data = new double[length];
+                    for (int k = 0; k < length; k++) {
+                        indices[k] = columns.getInt((from + k) * 4);
+                        data[k] = values.getDouble((from + k) * 8);
+                    }
+                    result[i] = new SparseVec(rows, indices, data);
+                });
+                start = end;
+            }
+            return new SparseMx(result);
+        }
+
+        // Maps the file straight into the primitive CSR arrays.
+        public CsrCooccurences readCsr() throws IOException {
+            if (nonZeroes > Integer.MAX_VALUE)
+                throw new LoadingModelException("Too many cooccurrences for the CSR arrays: " + nonZeroes + ".");
+            final long[] offsets = readRowPtr();
+            final int[] rowPtr = new int[rows + 1];
+            for (int i = 0; i <= rows; i++)
+                rowPtr[i] = (int) offsets[i];
+            final int[] columns = new int[(int) nonZeroes];
+            final float[] values = new float[(int) nonZeroes];
+            final int step = (int) (MAX_MAPPING / 8);
+            for (int start = 0; start < columns.length; start += step) {
+                final int count = Math.min(step, columns.length - start);
+                map(columnsOffset() + start * 4L, count * 4L).asIntBuffer().get(columns, start, count);
+                final ByteBuffer data = map(valuesOffset() + start * 8L, count * 8L);
+                for (int k = 0; k < count; k++)
+                    values[start + k] = (float) data.getDouble(k * 8);
+            }
+            return new CsrCooccurences(rows, rowPtr, columns, values);
+        }
+
+        long[] readRowPtr() throws IOException {
+            final long[] rowPtr = new long[rows + 1];
+            final ByteBuffer buffer = ByteBuffer.allocate((rows + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(buffer, HEADER_BYTES);
+            buffer.asLongBuffer().get(rowPtr);
+            return rowPtr;
+        }
+
+        long columnsOffset() {
+            return HEADER_BYTES + (rows + 1) * 8L;
+        }
+
+        long valuesOffset() {
+            return columnsOffset() + nonZeroes * 4;
+        }
+
+        ByteBuffer map(long from, long size) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, from, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private long refill(ByteBuffer buffer, long position) throws IOException {
+            buffer.compact();
+            final int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new LoadingModelException("Cooccurrences file is truncated.");
+            buffer.flip();
+            return position + read;
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new LoadingModelException("Cooccurrences file is truncated.");
+                position += read;
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.ml.embedding.exceptions.CooccurencesBuildingException;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Accumulates (i, j, x) triples in a fixed-size primitive buffer. When the buffer is full it is sorted by (i, j)
+// and spilled to a temporary file, merge() then combines all the spills in one k-way pass.
+public class CooccurencesSpiller implements Closeable {
+  // long key + double value in a half-loaded hash table, plus the sorted keys array during a spill
+  private static final int BYTES_PER_ENTRY = 48;
+  private static final int IO_BUFFER = 1 << 16;
+
+  private final int capacity;
+  private final File tempDirectory;
+  private final TLongDoubleHashMap buffer;
+  private final List<File> spills = new ArrayList<>();
+
+  public interface TripleConsumer {
+    void accept(int i, int j, double x);
+  }
+
+  public CooccurencesSpiller(long memoryLimit, File tempDirectory) {
+    this.capacity = (int) Math.max(1024, Math.min(Integer.MAX_VALUE / 4, memoryLimit / BYTES_PER_ENTRY));
+    this.tempDirectory = tempDirectory;
+    this.buffer = new TLongDoubleHashMap(capacity);
+  }
+
+  public void add(int i, int j, double x) {
+    buffer.adjustOrPutValue(key(i, j), x, x);
+    if (buffer.size() >= capacity)
+      spill();
+  }
+
+  public int spillsCount() {
+    return spills.size();
+  }
+
+  // Triples come to the consumer ordered by (i, j), each pair exactly once.
+  public void merge(TripleConsumer consumer) {
+    if (spills.isEmpty()) {
+      final long[] keys = sortedKeys();
+      for (long key : keys) {
+        consumer.accept(row(key), column(key), buffer.get(key));
+      }
+      buffer.clear();
+      return;
+    }
+    spill();
+
+    final PriorityQueue<SpillReader> queue = new PriorityQueue<>(spills.size(), (a, b) -> {
+      final int cmp = Long.compare(a.key, b.key);
+      return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+    });
+    try {
+      for (int k = 0; k < spills.size(); k++) {
+        final SpillReader reader = new SpillReader(spills.get(k), k);
+        if (reader.advance())
+          queue.add(reader);
+        else
+          reader.close();
+      }
+      while (!queue.isEmpty()) {
+        final SpillReader top = queue.poll();
+        final long key = top.key;
+        double value = top.value;
+        pushBack(queue, top);
+        while (!queue.isEmpty() && queue.peek().key == key) {
+          final SpillReader same = queue.poll();
+          value += same.value;
+          pushBack(queue, same);
+        }
+        consumer.accept(row(key), column(key), value);
+      }
+    } catch (IOException e) {
+      throw new CooccurencesBuildingException("Couldn't merge cooccurrences spill files. " + e.getMessage());
+    } finally {
+      for (SpillReader reader : queue) {
+        reader.close();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    for (File file : spills) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+    spills.clear();
+    buffer.clear();
+  }
+
+  private void spill() {
+    if (buffer.isEmpty())
+      return;
+    final long[] keys = sortedKeys();
+    try {
+      final File file = File.createTempFile("cooccurences", ".spill", tempDirectory);
+      file.deleteOnExit();
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER))) {
+        for (long key : keys) {
+          out.writeLong(key);
+          out.writeDouble(buffer.get(key));
+        }
+      }
+      spills.add(file);
+    } catch (IOException e) {
+      throw new CooccurencesBuildingException("Couldn't write cooccurrences spill file. " + e.getMessage());
+    }
+    buffer.clear();
+  }
+
+  private long[] sortedKeys() {
+    final long[] keys = buffer.keys();
+    Arrays.parallelSort(keys);
+    return keys;
+  }
+
+  private static void pushBack(PriorityQueue<SpillReader> queue, SpillReader reader) throws IOException {
+    if (reader.advance())
+      queue.add(reader);
+    else
+      reader.close();
+  }
+
+  private static long key(int i, int j) {
+    return ((long) i << 32) | j;
+  }
+
+  private static int row(long key) {
+    return (int) (key >>> 32);
+  }
+
+  private static int column(long key) {
+    return (int) key;
+  }
+
+  private static class SpillReader {
+    private final DataInputStream in;
+    private final int index;
+    private long key;
+    private double value;
+
+    SpillReader(File file, int index) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER));
+      this.index = index;
+    }
+
+    boolean advance() throws IOException {
+      try {
+        key = in.readLong();
+      } catch (EOFException e) {
+        return false;
+      }
+      value = in.readDouble();
+      return true;
+    }
+
+    void close() {
+      try {
+        in.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
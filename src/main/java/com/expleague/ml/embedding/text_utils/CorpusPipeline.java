@@ -0,0 +1,137 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.util.logging.Interval;
+import com.expleague.ml.embedding.exceptions.EmptyVocabularyException;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Builds vocabulary and cooccurrences in one pass over the corpus.
+// Tokens are interned to provisional ids while their frequencies are counted and the id stream is buffered,
+// then the dictionary is pruned by minCount and maxVocabSize, ids are remapped to the frequency order
+// of the Vocabulary in place and windows are counted from the buffer.
+public class CorpusPipeline {
+  private int leftWindow = 15;
+  private int rightWindow = 15;
+  private int threads = 1;
+  private long memoryLimit = 0;
+  private int minCount = Vocabulary.MIN_COUNT;
+  private int maxVocabSize = 0;
+  private Tokenizer.Type tokenizer = Tokenizer.Type.FAST;
+
+  private Vocabulary vocabulary;
+  private CsrCooccurences cooccurences;
+
+  public CorpusPipeline setLeftWindow(int leftWindow) {
+    this.leftWindow = leftWindow;
+    return this;
+  }
+
+  public CorpusPipeline setRightWindow(int rightWindow) {
+    this.rightWindow = rightWindow;
+    return this;
+  }
+
+  public CorpusPipeline setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  public CorpusPipeline setMemoryLimit(long memoryLimit) {
+    this.memoryLimit = memoryLimit;
+    return this;
+  }
+
+  public CorpusPipeline setMinCount(int minCount) {
+    this.minCount = minCount;
+    return this;
+  }
+
+  public CorpusPipeline setMaxVocabSize(int maxVocabSize) {
+    this.maxVocabSize = maxVocabSize;
+    return this;
+  }
+
+  public CorpusPipeline setTokenizer(Tokenizer.Type tokenizer) {
+    this.tokenizer = tokenizer;
+    return this;
+  }
+
+  public Vocabulary getVocabulary() {
+    return vocabulary;
+  }
+
+  public CsrCooccurences getCooccurences() {
+    return cooccurences;
+  }
+
+  public CorpusPipeline run(BufferedReader reader) {
+    Interval.start();
+    final TokenIndex provisional = new TokenIndex(100000);
+    final TIntArrayList counts = new TIntArrayList();
+    final TIntArrayList stream = new TIntArrayList();
+    final TIntArrayList lineEnds = new TIntArrayList();
+    final Tokenizer tokenizer = this.tokenizer.create();
+    final Tokenizer.TokenHandler interner = (buffer, offset, length) -> {
+      final int id = provisional.add(buffer, offset, length);
+      if (id == counts.size())
+        counts.add(1);
+      else
+        counts.set(id, counts.get(id) + 1);
+      stream.add(id);
+    };
+    String line;
+    try {
+      while ((line = reader.readLine()) != null) {
+        tokenizer.tokenize(line, interner);
+        lineEnds.add(stream.size());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Interval.stopAndPrint("Corpus tokenized for");
+
+    final int[] remap = new int[provisional.size()];
+    Arrays.fill(remap, Vocabulary.NO_ENTRY_VALUE);
+    final int[] selected = Vocabulary.select(counts, minCount, maxVocabSize);
+    final List<String> kept = new ArrayList<>(selected.length);
+    final int[] keptCounts = new int[selected.length];
+    for (int i = 0; i < selected.length; i++) {
+      remap[selected[i]] = i;
+      kept.add(provisional.word(selected[i]));
+      keptCounts[i] = counts.get(selected[i]);
+    }
+    if (kept.isEmpty())
+      throw new EmptyVocabularyException("No word occurs in the corpus at least " + minCount + " times.");
+    vocabulary = new Vocabulary(kept, keptCounts);
+
+    // ids are remapped and the dropped ones squeezed out in place, so the buffer is never copied
+    int size = 0;
+    int start = 0;
+    for (int l = 0; l < lineEnds.size(); l++) {
+      final int end = lineEnds.get(l);
+      for (int k = start; k < end; k++) {
+        final int id = remap[stream.get(k)];
+        if (id != Vocabulary.NO_ENTRY_VALUE)
+          stream.set(size++, id);
+      }
+      lineEnds.set(l, size);
+      start = end;
+    }
+    if (size < stream.size())
+      stream.remove(size, stream.size() - size);
+
+    cooccurences = new CooccurencesBuilder()
+        .setLeftWindow(leftWindow)
+        .setRightWindow(rightWindow)
+        .setVocabulary(vocabulary)
+        .setThreads(threads)
+        .setMemoryLimit(memoryLimit)
+        .buildCsr(stream, lineEnds);
+    return this;
+  }
+}
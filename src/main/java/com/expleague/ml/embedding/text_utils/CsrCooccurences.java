@@ -0,0 +1,159 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.VecIterator;
+import com.expleague.commons.math.vectors.impl.mx.SparseMx;
+import com.expleague.commons.math.vectors.impl.vectors.SparseVec;
+import com.expleague.ml.embedding.exceptions.CooccurencesBuildingException;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Immutable cooccurrences in compressed sparse rows: non-zeroes of row i are at [rowPtr[i], rowPtr[i + 1])
+// of the columns and values arrays, columns are increasing inside a row.
+// The arrays are exposed as is for the training loops, don't modify them.
+public class CsrCooccurences {
+    private final int rows;
+    private final int[] rowPtr;
+    private final int[] columns;
+    private final float[] values;
+
+    public CsrCooccurences(int rows, int[] rowPtr, int[] columns, float[] values) {
+        this.rows = rows;
+        this.rowPtr = rowPtr;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    public static CsrCooccurences fromMx(Mx mx) {
+        final int rows = mx.rows();
+        final int[] counts = new int[rows];
+        IntStream.range(0, rows).parallel().forEach(i -> {
+            final VecIterator nz = mx.row(i).nonZeroes();
+            int count = 0;
+            while (nz.advance()) {
+                if (nz.value() != 0)
+                    count++;
+            }
+            counts[i] = count;
+        });
+        final int[] rowPtr = new int[rows + 1];
+        for (int i = 0; i < rows; i++) {
+            rowPtr[i + 1] = Math.addExact(rowPtr[i], counts[i]);
+        }
+        final int[] columns = new int[rowPtr[rows]];
+        final float[] values = new float[rowPtr[rows]];
+        IntStream.range(0, rows).parallel().forEach(i -> {
+            final VecIterator nz = mx.row(i).nonZeroes();
+            int k = rowPtr[i];
+            while (nz.advance()) {
+                if (nz.value() == 0)
+                    continue;
+                columns[k] = nz.index();
+                values[k] = (float) nz.value();
+                k++;
+            }
+        });
+        return new CsrCooccurences(rows, rowPtr, columns, values);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int nonZeroes() {
+        return rowPtr[rows];
+    }
+
+    public int[] rowPtr() {
+        return rowPtr;
+    }
+
+    public int[] columns() {
+        return columns;
+    }
+
+    public float[] values() {
+        return values;
+    }
+
+    public double get(int i, int j) {
+        final int k = Arrays.binarySearch(columns, rowPtr[i], rowPtr[i + 1], j);
+        return k >= 0 ? values[k] : 0;
+    }
+
+    // Element-wise sum with a matrix of the same vocabulary, e.g. with cooccurrences of text appended to the corpus.
+    // Rows that are empty in other are copied as they are.
+    public CsrCooccurences plus(CsrCooccurences other) {
+        if (other.rows != rows)
+            throw new CooccurencesBuildingException("Can't add cooccurrences of " + other.rows + " words to those of " + rows + ".");
+        final int[] counts = new int[rows];
+        IntStream.range(0, rows).parallel().forEach(i -> {
+            int a = rowPtr[i];
+            int b = other.rowPtr[i];
+            int count = 0;
+            while (a < rowPtr[i + 1] || b < other.rowPtr[i + 1]) {
+                if (b == other.rowPtr[i + 1] || (a < rowPtr[i + 1] && columns[a] < other.columns[b]))
+                    a++;
+                else if (a == rowPtr[i + 1] || other.columns[b] < columns[a])
+                    b++;
+                else {
+                    a++;
+                    b++;
+                }
+                count++;
+            }
+            counts[i] = count;
+        });
+        final int[] sumPtr = new int[rows + 1];
+        for (int i = 0; i < rows; i++) {
+            sumPtr[i + 1] = Math.addExact(sumPtr[i], counts[i]);
+        }
+        final int[] sumColumns = new int[sumPtr[rows]];
+        final float[] sumValues = new float[sumPtr[rows]];
+        IntStream.range(0, rows).parallel().forEach(i -> {
+            int a = rowPtr[i];
+            int b = other.rowPtr[i];
+            if (b == other.rowPtr[i + 1]) {
+                System.arraycopy(columns, a, sumColumns, sumPtr[i], counts[i]);
+                System.arraycopy(values, a, sumValues, sumPtr[i], counts[i]);
+                return;
+            }
+            for (int k = sumPtr[i]; k < sumPtr[i + 1]; k++) {
+                if (b == other.rowPtr[i + 1] || (a < rowPtr[i + 1] && columns[a] < other.columns[b])) {
+                    sumColumns[k] = columns[a];
+                    sumValues[k] = values[a++];
+                } else if (a == rowPtr[i + 1] || other.columns[b] < columns[a]) {
+                    sumColumns[k] = other.columns[b];
+                    sumValues[k] = other.values[b++];
+                } else {
+                    sumColumns[k] = columns[a];
+                    sumValues[k] = values[a++] + other.values[b++];
+                }
+            }
+        });
+        return new CsrCooccurences(rows, sumPtr, sumColumns, sumValues);
+    }
+
+    // Rows with at least one non-zero, ascending.
+    public int[] nonEmptyRows() {
+        return IntStream.range(0, rows).filter(i -> rowPtr[i + 1] > rowPtr[i]).toArray();
+    }
+
+    public long memorySize() {
+        return 4L * rowPtr.length + 4L * columns.length + 4L * values.length;
+    }
+
+    // Copies the matrix to a generic sparse one.
+    public Mx toMx() {
+        final SparseVec[] result = new SparseVec[rows];
+        IntStream.range(0, rows).parallel().forEach(i -> {
+            final int length = rowPtr[i + 1] - rowPtr[i];
+            final double[] data = new double[length];
+            for (int k = 0; k < length; k++)
+                data[k] = values[rowPtr[i] + k];
+            result[i] = new SparseVec(rows, Arrays.copyOfRange(columns, rowPtr[i], rowPtr[i + 1]), data);
+        });
+        return new SparseMx(result);
+    }
+}
@@ -0,0 +1,54 @@
+package com.expleague.ml.embedding.text_utils;
+
+// Tokens are runs of letters and digits. Like the BreakIterator word rules, a single ' . - or _ between two letters
+// and a single . , or ' between two digits do not break a token.
+// Chars are lower-cased in place in a reusable buffer, so no objects are created per token.
+public class FastTokenizer implements Tokenizer {
+    private char[] buffer = new char[1024];
+
+    @Override
+    public void tokenize(String line, TokenHandler handler) {
+        final int length = line.length();
+        if (buffer.length < length)
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        final char[] chars = buffer;
+        line.getChars(0, length, chars, 0);
+
+        int start = -1;
+        for (int i = 0; i < length; i++) {
+            final char c = chars[i];
+            if (Character.isLetterOrDigit(c)) {
+                chars[i] = Character.toLowerCase(c);
+                if (start < 0)
+                    start = i;
+            } else if (start >= 0 && !joins(chars, i, length)) {
+                handler.token(chars, start, i - start);
+                start = -1;
+            }
+        }
+        if (start >= 0)
+            handler.token(chars, start, length - start);
+    }
+
+    private static boolean joins(char[] chars, int i, int length) {
+        if (i + 1 >= length)
+            return false;
+        final char prev = chars[i - 1];
+        final char next = chars[i + 1];
+        switch (chars[i]) {
+            case '\'':
+                return Character.isLetter(prev) && Character.isLetter(next)
+                    || Character.isDigit(prev) && Character.isDigit(next);
+            case '.':
+                return Character.isLetter(prev) && Character.isLetter(next)
+                    || Character.isDigit(prev) && Character.isDigit(next);
+            case '-':
+            case '_':
+                return Character.isLetter(prev) && Character.isLetter(next);
+            case ',':
+                return Character.isDigit(prev) && Character.isDigit(next);
+            default:
+                return false;
+        }
+    }
+}
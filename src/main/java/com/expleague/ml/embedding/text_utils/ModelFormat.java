@@ -0,0 +1,8 @@
+package com.expleague.ml.embedding.text_utils;
+
+// BINARY = train_vectors.bin / eval_vectors.bin written with BinaryModelIO,
+// TEXT = train_vectors.txt / eval_vectors.txt written with VecIO, kept for export.
+public enum ModelFormat {
+    BINARY,
+    TEXT
+}
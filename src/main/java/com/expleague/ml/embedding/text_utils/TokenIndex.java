@@ -0,0 +1,118 @@
+package com.expleague.ml.embedding.text_utils;
+
+import java.util.Arrays;
+
+// Open addressing hash from words to dense ids, looked up by char ranges so that tokens need no String.
+// Lookups are safe from several threads once nothing is added anymore.
+public class TokenIndex {
+    private static final int EMPTY = -1;
+
+    private int[] table;
+    private int mask;
+    private char[] chars = new char[1 << 16];
+    private int charsSize = 0;
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private int[] hashes = new int[1024];
+    private int size = 0;
+
+    public TokenIndex() {
+        this(1024);
+    }
+
+    public TokenIndex(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(char[] buffer, int offset, int length) {
+        final int hash = hash(buffer, offset, length);
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final int id = table[slot];
+            if (id == EMPTY)
+                return Vocabulary.NO_ENTRY_VALUE;
+            if (hashes[id] == hash && matches(id, buffer, offset, length))
+                return id;
+        }
+    }
+
+    public int get(String word) {
+        final char[] buffer = word.toCharArray();
+        return get(buffer, 0, buffer.length);
+    }
+
+    // Returns the id of the word, adding it with the next free id if it is new.
+    public int add(char[] buffer, int offset, int length) {
+        final int hash = hash(buffer, offset, length);
+        int slot = hash & mask;
+        for (; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            final int id = table[slot];
+            if (hashes[id] == hash && matches(id, buffer, offset, length))
+                return id;
+        }
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        if (charsSize + length > chars.length)
+            chars = Arrays.copyOf(chars, Math.max(charsSize + length, chars.length * 2));
+        System.arraycopy(buffer, offset, chars, charsSize, length);
+        final int id = size++;
+        offsets[id] = charsSize;
+        lengths[id] = length;
+        hashes[id] = hash;
+        charsSize += length;
+        table[slot] = id;
+        if (size * 2 > table.length)
+            rehash();
+        return id;
+    }
+
+    public int add(String word) {
+        final char[] buffer = word.toCharArray();
+        return add(buffer, 0, buffer.length);
+    }
+
+    public String word(int id) {
+        return new String(chars, offsets[id], lengths[id]);
+    }
+
+    private boolean matches(int id, char[] buffer, int offset, int length) {
+        if (lengths[id] != length)
+            return false;
+        final int start = offsets[id];
+        for (int k = 0; k < length; k++) {
+            if (chars[start + k] != buffer[offset + k])
+                return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            table[slot] = id;
+        }
+    }
+
+    private static int hash(char[] buffer, int offset, int length) {
+        int h = 0;
+        for (int k = offset; k < offset + length; k++)
+            h = 31 * h + buffer[k];
+        return h ^ (h >>> 16);
+    }
+}
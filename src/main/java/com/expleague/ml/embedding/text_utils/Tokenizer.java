@@ -0,0 +1,25 @@
+package com.expleague.ml.embedding.text_utils;
+
+// Splits lines into lower-cased word tokens. Implementations are not thread-safe, create one per thread.
+public interface Tokenizer {
+    // Token chars are valid only until the handler returns.
+    interface TokenHandler {
+        void token(char[] buffer, int offset, int length);
+    }
+
+    void tokenize(String line, TokenHandler handler);
+
+    enum Type {
+        // char scanner folding case in place, no allocations per token
+        FAST,
+        // java.text.BreakIterator word instance, the tokenization used before
+        BREAK_ITERATOR;
+
+        public Tokenizer create() {
+            switch (this) {
+                case BREAK_ITERATOR: return new BreakIteratorTokenizer();
+                default: return new FastTokenizer();
+            }
+        }
+    }
+}
@@ -1,29 +1,47 @@
 package com.expleague.ml.embedding.text_utils;
 
 import com.expleague.ml.embedding.exceptions.VocabularyBuildingException;
-import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
-import java.text.BreakIterator;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 //Immutable vocabulary. Create new vocab if you want to change smth.
 //TODO слова с большой буквы то же самое, что с маленькой? А капслок? Просто изменения размера.
+// Built from a corpus, ids go by descending frequency (ties by first occurrence), so hot rows of the
+// parameters are next to each other. Counts are kept and saved with the words.
 public class Vocabulary {
     private List<String> wordsList = new ArrayList<>();
-    private TObjectIntMap<String> wordsIndx = new TObjectIntHashMap<>();
+    private TObjectIntMap<String> wordsIndx = new TObjectIntHashMap<>(16, 0.5f, NO_ENTRY_VALUE);
+    private TokenIndex tokensIndx = new TokenIndex();
+    private TIntArrayList counts = new TIntArrayList();
     private int size = 0;
 
     public static int NO_ENTRY_VALUE = -1;
     public static final int MIN_COUNT = 5;
+    // counts of words loaded from files that didn't keep them
+    public static final int UNKNOWN_COUNT = 0;
 
     public Vocabulary(final String filepath) throws VocabularyBuildingException {
+        this(filepath, Tokenizer.Type.FAST);
+    }
+
+    public Vocabulary(final String filepath, Tokenizer.Type tokenizer) throws VocabularyBuildingException {
+        this(filepath, tokenizer, MIN_COUNT, 0);
+    }
+
+    // maxSize = 0 keeps all words occurring at least minCount times.
+    public Vocabulary(final String filepath, Tokenizer.Type tokenizer, int minCount, int maxSize)
+        throws VocabularyBuildingException {
         try {
-            readWords(filepath);
+            readWords(filepath, tokenizer.create(), minCount, maxSize);
         } catch (RuntimeException e) {
             //e.printStackTrace();
             final String message = "Constructing vocabulary failed. " + e.getMessage();
@@ -31,11 +49,39 @@ public class Vocabulary {
         }
     }
 
+    // Words keep the given order, counts are unknown.
     public Vocabulary(List<String> words) {
-        size = words.size();
-        wordsList.addAll(words);
-        for (int i = 0; i < size; i++)
-            wordsIndx.put(words.get(i), i);
+        this(words, null);
+    }
+
+    // Words keep the given order, counts may be null.
+    public Vocabulary(List<String> words, int[] counts) {
+        for (int i = 0; i < words.size(); i++)
+            add(words.get(i), counts == null ? UNKNOWN_COUNT : counts[i]);
+    }
+
+    private void add(String word, int count) {
+        wordsList.add(word);
+        wordsIndx.put(word, size);
+        tokensIndx.add(word);
+        counts.add(count);
+        size++;
+    }
+
+    // Ids of the words to keep, most frequent first, ties by id. maxSize = 0 means no limit.
+    public static int[] select(TIntArrayList counts, int minCount, int maxSize) {
+        final int[] kept = IntStream.range(0, counts.size())
+            .filter(id -> counts.get(id) >= minCount)
+            .boxed()
+            .sorted((a, b) -> counts.get(a) != counts.get(b) ? Integer.compare(counts.get(b), counts.get(a)) : Integer.compare(a, b))
+            .mapToInt(Integer::intValue)
+            .toArray();
+        if (maxSize > 0 && kept.length > maxSize) {
+            final int[] top = new int[maxSize];
+            System.arraycopy(kept, 0, top, 0, maxSize);
+            return top;
+        }
+        return kept;
     }
 
     public int size() {
@@ -43,18 +89,27 @@ public class Vocabulary {
     }
 
     public int wordToIndex(String word) {
-        final String normalizedWord = normalize(word);
-        if (!wordsIndx.containsKey(normalizedWord)) {
-            return NO_ENTRY_VALUE;
-        }
-        return wordsIndx.get(normalizedWord);
+        return wordsIndx.get(normalize(word));
+    }
+
+    // Looks up a token that is already lower-cased by a Tokenizer.
+    public int wordToIndex(char[] buffer, int offset, int length) {
+        return tokensIndx.get(buffer, offset, length);
+    }
+
+    // Ids of all words at once, NO_ENTRY_VALUE for unknown ones.
+    public int[] wordsToIndices(List<String> words) {
+        final int[] result = new int[words.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = wordToIndex(words.get(i));
+        return result;
     }
 
-    public boolean containsWord(String word) { return wordsList.contains(word); }
+    public boolean containsWord(String word) { return wordsIndx.containsKey(word); }
 
     public boolean containsAll(List<String> words) {
         for (String word : words) {
-            if (!wordsList.contains(word)) return false;
+            if (!wordsIndx.containsKey(word)) return false;
         }
         return true;
     }
@@ -71,11 +126,63 @@ public class Vocabulary {
         return wordsList.get(i);
     }
 
+    // Occurrences of the word in the corpus, UNKNOWN_COUNT if the vocabulary was loaded without counts.
+    public int count(int i) {
+        return counts.get(i);
+    }
+
+    // The same words and ids with counts increased by their occurrences in the text, other words are skipped.
+    public Vocabulary addCounts(BufferedReader reader, Tokenizer.Type tokenizer) throws IOException {
+        final int[] updated = counts.toArray();
+        final Tokenizer words = tokenizer.create();
+        final Tokenizer.TokenHandler counter = (buffer, offset, length) -> {
+            final int id = wordToIndex(buffer, offset, length);
+            if (id != NO_ENTRY_VALUE)
+                updated[id]++;
+        };
+        String line;
+        while ((line = reader.readLine()) != null) {
+            words.tokenize(line, counter);
+        }
+        return new Vocabulary(wordsList, updated);
+    }
+
     public List<String> getEntries() {
         return wordsList;
     }
 
-    private void readWords(final String filepath) {
+    // vocab.txt: the size, then a line "word count" per word in the order of ids.
+    public void write(Path path) throws IOException {
+        try (Writer fout = Files.newBufferedWriter(path)) {
+            fout.append(Integer.toString(size)).append('\n');
+            for (int i = 0; i < size; i++) {
+                fout.append(wordsList.get(i)).append(' ').append(Integer.toString(counts.get(i))).append('\n');
+            }
+        }
+    }
+
+    // Also reads files of a word per line without counts.
+    public static Vocabulary read(Path path) throws IOException {
+        try (BufferedReader fin = Files.newBufferedReader(path)) {
+            final int size = Integer.parseInt(fin.readLine().trim());
+            final List<String> words = new ArrayList<>(size);
+            final int[] counts = new int[size];
+            for (int i = 0; i < size; i++) {
+                final String line = fin.readLine();
+                final int space = line.lastIndexOf(' ');
+                if (space > 0) {
+                    words.add(line.substring(0, space));
+                    counts[i] = Integer.parseInt(line.substring(space + 1));
+                } else {
+                    words.add(line);
+                    counts[i] = UNKNOWN_COUNT;
+                }
+            }
+            return new Vocabulary(words, counts);
+        }
+    }
+
+    private void readWords(final String filepath, Tokenizer tokenizer, int minCount, int maxSize) {
         File file = new File(filepath);
         BufferedReader fin;
         try {
@@ -85,31 +192,21 @@ public class Vocabulary {
         }
         String line;
         try {
-            TObjectIntMap<String> wordsCount = new TObjectIntHashMap<>();
+            final TokenIndex allWords = new TokenIndex(100000);
+            final TIntArrayList wordsCount = new TIntArrayList();
+            final Tokenizer.TokenHandler counter = (buffer, offset, length) -> {
+                final int id = allWords.add(buffer, offset, length);
+                if (id == wordsCount.size())
+                    wordsCount.add(1);
+                else
+                    wordsCount.set(id, wordsCount.get(id) + 1);
+            };
             while ((line = fin.readLine()) != null) {
-                BreakIterator breakIterator = BreakIterator.getWordInstance();
-                breakIterator.setText(line);
-                int lastIndex = breakIterator.first();
-                while (BreakIterator.DONE != lastIndex) {
-                    int firstIndex = lastIndex;
-                    lastIndex = breakIterator.next();
-                    if (lastIndex != BreakIterator.DONE && Character.isLetterOrDigit(line.charAt(firstIndex))) {
-                        final String word = normalize(line.substring(firstIndex, lastIndex));
-                        /*if (word.length() != 1 && !word.replaceAll("[*0-9]", "").isEmpty()) {
-                            wordsCount.adjustOrPutValue(word, 1, 1);
-                        }*/
-                        wordsCount.adjustOrPutValue(word, 1, 1);
-                    }
-                }
-            }
-            for (TObjectIntIterator<String> it = wordsCount.iterator(); it.hasNext();) {
-                it.advance();
-                if (it.value() >= MIN_COUNT) {
-                    wordsList.add(it.key());
-                    wordsIndx.put(it.key(), size);
-                    size++;
-                }
+                tokenizer.tokenize(line, counter);
             }
+            for (int id : select(wordsCount, minCount, maxSize))
+                add(allWords.word(id), wordsCount.get(id));
+            fin.close();
         } catch (IOException e) {
             throw new RuntimeException("Couldn't readMetricsFile the vocabulary file.");
         }
@@ -0,0 +1,87 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.random.FastRandom;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Synthetic text for benchmarks: the word of rank r occurs with probability proportional to 1 / r^exponent,
+// as words of natural text roughly do, so vocabulary, cooccurrence and row-length distributions scale
+// the way they do on real corpora. The same parameters and seed always give the same text.
+// Words are the ranks written in base 26 with the letters a..z, tokenizers keep them as they are.
+public class ZipfCorpus {
+    private int vocabularySize = 50000;
+    private double exponent = 1.0;
+    private int lineLength = 1000;
+    private long seed = 100500;
+
+    public ZipfCorpus setVocabularySize(int vocabularySize) {
+        this.vocabularySize = vocabularySize;
+        return this;
+    }
+
+    public ZipfCorpus setExponent(double exponent) {
+        this.exponent = exponent;
+        return this;
+    }
+
+    // Tokens per line, windows never cross lines.
+    public ZipfCorpus setLineLength(int lineLength) {
+        this.lineLength = lineLength;
+        return this;
+    }
+
+    public ZipfCorpus setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // Word of rank 0, 1, ... : a, b, ..., z, aa, ab, ...
+    public static String word(int rank) {
+        final StringBuilder result = new StringBuilder();
+        int rest = rank + 1;
+        while (rest > 0) {
+            rest--;
+            result.append((char) ('a' + rest % 26));
+            rest /= 26;
+        }
+        return result.reverse().toString();
+    }
+
+    public void write(Path path, long tokens) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path)) {
+            write(out, tokens);
+        }
+    }
+
+    public void write(Writer out, long tokens) throws IOException {
+        final double[] cdf = new double[vocabularySize];
+        double sum = 0;
+        for (int r = 0; r < vocabularySize; r++) {
+            sum += Math.pow(r + 1, -exponent);
+            cdf[r] = sum;
+        }
+        final String[] words = new String[vocabularySize];
+        for (int r = 0; r < vocabularySize; r++)
+            words[r] = word(r);
+
+        final FastRandom rng = new FastRandom(seed);
+        final StringBuilder line = new StringBuilder();
+        for (long written = 0; written < tokens; ) {
+            line.setLength(0);
+            final long end = Math.min(tokens, written + lineLength);
+            for (; written < end; written++) {
+                int rank = Arrays.binarySearch(cdf, rng.nextDouble() * sum);
+                if (rank < 0)
+                    rank = Math.min(-rank - 1, vocabularySize - 1);
+                if (line.length() > 0)
+                    line.append(' ');
+                line.append(words[rank]);
+            }
+            out.append(line).append('\n');
+        }
+    }
+}
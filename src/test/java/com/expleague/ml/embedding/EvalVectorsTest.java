@@ -0,0 +1,72 @@
+package com.expleague.ml.embedding;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.Vec;
+import com.expleague.commons.math.vectors.VecTools;
+import com.expleague.ml.embedding.text_utils.BinaryModelIO;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EvalVectorsTest {
+
+    @Test
+    public void gloveNormalizedVectorsAreTheEvalVectors() throws IOException {
+        checkNormalizedVectors("GLOVE");
+    }
+
+    @Test
+    public void decompNormalizedVectorsAreTheEvalVectors() throws IOException {
+        checkNormalizedVectors("DECOMP");
+    }
+
+    // A model loaded in mode 1 maps eval_vectors.norm, it has to serve the normalized rows of eval_vectors.bin.
+    private static void checkNormalizedVectors(String modelName) throws IOException {
+        final Path dir = Files.createTempDirectory("eval-test");
+        try {
+            final Path corpus = dir.resolve("corpus.txt");
+            Files.write(corpus, Word2VecDeltaTest.randomText(300, 5).getBytes(StandardCharsets.UTF_8));
+            final ModelParameters parameters = new ModelParameters.Builder(corpus.toString())
+                .setModelName(modelName)
+                .setGloveVecSize(8)
+                .setSymSize(8)
+                .setSkewSize(2)
+                .setTrainingIters(2)
+                .setThreads(1)
+                .build();
+            final Path model = Files.createDirectory(dir.resolve("model"));
+            final Word2Vec trained = new Word2Vec();
+            trained.createTrainer().buildVocabAndCooccurences(parameters);
+            trained.createTrainer().trainModel(parameters);
+            trained.saveModel(model.toString());
+            assertTrue(Files.exists(model.resolve("eval_vectors.norm")));
+
+            final Mx eval;
+            try (BinaryModelIO.Reader reader = new BinaryModelIO.Reader(model.resolve("eval_vectors.bin"))) {
+                eval = reader.readMx();
+            }
+            final Word2Vec loaded = new Word2Vec();
+            loaded.loadModel(model.toString(), 1);
+            final Model mapped = loaded.getModel();
+            final List<String> words = mapped.getVocabulary();
+            assertEquals(eval.rows(), words.size());
+            assertEquals(eval.columns(), mapped.getVectorSize());
+            for (int i = 0; i < words.size(); i++) {
+                final Vec expected = VecTools.copy(eval.row(i));
+                VecTools.normalizeL2(expected);
+                final Vec actual = mapped.getVectorByWord(words.get(i));
+                for (int j = 0; j < expected.dim(); j++)
+                    assertEquals(words.get(i), expected.get(j), actual.get(j), 1e-6);
+            }
+        } finally {
+            Word2VecDeltaTest.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.expleague.ml.embedding;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.text_utils.CooccurencesBuilder;
+import com.expleague.ml.embedding.text_utils.CooccurencesIO;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import com.expleague.ml.embedding.text_utils.Vocabulary;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Word2VecDeltaTest {
+
+    // Lines of words w0..w39 with a skewed frequency, plus a few out-of-vocabulary ones.
+    static String randomText(int lines, long seed) {
+        final FastRandom rng = new FastRandom(seed);
+        final StringBuilder text = new StringBuilder();
+        for (int l = 0; l < lines; l++) {
+            final int length = 3 + rng.nextInt(20);
+            for (int t = 0; t < length; t++) {
+                final int word = rng.nextInt(10) == 0 ? 1000 + rng.nextInt(1000) : (int) (40 * Math.pow(rng.nextDouble(), 2));
+                text.append(t > 0 ? " " : "").append('w').append(word);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    // Loading a model with a delta has to give the cooccurrences and counts of the whole text over the stored vocabulary.
+    @Test
+    public void deltaLoadMatchesCountingTheWholeText() throws IOException {
+        final Path dir = Files.createTempDirectory("delta-test");
+        try {
+            final String base = randomText(300, 1);
+            final String delta = randomText(50, 2);
+            final Path corpus = dir.resolve("corpus.txt");
+            final Path appended = dir.resolve("delta.txt");
+            Files.write(corpus, base.getBytes(StandardCharsets.UTF_8));
+            Files.write(appended, delta.getBytes(StandardCharsets.UTF_8));
+            final ModelParameters parameters = new ModelParameters.Builder(corpus.toString())
+                .setGloveVecSize(5)
+                .setTrainingIters(1)
+                .setThreads(2)
+                .build();
+
+            final Path model = Files.createDirectory(dir.resolve("model"));
+            final Word2Vec trained = new Word2Vec();
+            trained.createTrainer().buildVocabAndCooccurences(parameters);
+            trained.createTrainer().trainModel(parameters);
+            trained.saveModel(model.toString());
+            final Vocabulary vocabulary = Vocabulary.read(model.resolve("vocab.txt"));
+
+            final Path refreshed = Files.createDirectory(dir.resolve("refreshed"));
+            final Word2Vec loaded = new Word2Vec();
+            loaded.loadModel(model.toString(), appended.toString(), parameters);
+            loaded.createTrainer().warmStart(parameters, true);
+            loaded.saveModel(refreshed.toString());
+
+            final CsrCooccurences expected = new CooccurencesBuilder()
+                .setLeftWindow(parameters.getLeftWindow())
+                .setRightWindow(parameters.getRightWindow())
+                .setVocabulary(vocabulary)
+                .setThreads(1)
+                .setTokenizer(parameters.getTokenizer())
+                .buildCsr(new BufferedReader(new StringReader(base + delta)));
+            final CsrCooccurences actual;
+            try (CooccurencesIO.Reader reader = new CooccurencesIO.Reader(refreshed.resolve("coocurences.bin"))) {
+                actual = reader.readCsr();
+            }
+            assertArrayEquals(expected.rowPtr(), actual.rowPtr());
+            assertArrayEquals(expected.columns(), actual.columns());
+            assertArrayEquals(expected.values(), actual.values(), 1e-3f);
+
+            final Vocabulary counted = vocabulary.addCounts(new BufferedReader(new StringReader(delta)), parameters.getTokenizer());
+            final Vocabulary stored = Vocabulary.read(refreshed.resolve("vocab.txt"));
+            assertEquals(counted.getEntries(), stored.getEntries());
+            for (int i = 0; i < counted.size(); i++)
+                assertEquals(counted.count(i), stored.count(i));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(paths::add);
+        }
+        for (Path path : paths)
+            Files.delete(path);
+    }
+}
@@ -0,0 +1,172 @@
+package com.expleague.ml.embedding.model_functions;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.text_utils.CsrCooccurences;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StratifiedSchedulerTest {
+    private static final int ROWS = 101;
+
+    // Random sparse matrix with a full diagonal, so that the diagonal buckets are never empty.
+    static CsrCooccurences randomMatrix(int rows, double density, long seed) {
+        final FastRandom rng = new FastRandom(seed);
+        final int[] rowPtr = new int[rows + 1];
+        final int[] columns = new int[rows * rows];
+        final float[] values = new float[rows * rows];
+        int nz = 0;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < rows; j++) {
+                if (i == j || rng.nextDouble() < density) {
+                    columns[nz] = j;
+                    values[nz] = 1 + rng.nextInt(10);
+                    nz++;
+                }
+            }
+            rowPtr[i + 1] = nz;
+        }
+        return new CsrCooccurences(rows, rowPtr, java.util.Arrays.copyOf(columns, nz), java.util.Arrays.copyOf(values, nz));
+    }
+
+    @Test
+    public void strataCoverEveryBucketOnceWithDisjointBlocks() {
+        final CsrCooccurences crc = randomMatrix(ROWS, 0.1, 1);
+        for (boolean symmetric : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 2, 3, 4}) {
+                try (TrainingScheduler.Stratified scheduler = new TrainingScheduler.Stratified(crc, null, threads, new FastRandom(7), symmetric)) {
+                    final int blocks = scheduler.blocks;
+                    assertEquals(symmetric ? 2 * threads : threads, blocks);
+                    final Set<Long> covered = new HashSet<>();
+                    for (int[][] stratum : scheduler.strata) {
+                        final Set<Integer> rowBlocks = new HashSet<>();
+                        final Set<Integer> columnBlocks = new HashSet<>();
+                        for (int[] pair : stratum) {
+                            if (symmetric) {
+                                // a task of (a, b) also runs (b, a): both blocks are rows and columns at once
+                                assertTrue(rowBlocks.add(pair[0]));
+                                assertTrue(pair[0] == pair[1] || rowBlocks.add(pair[1]));
+                                assertTrue(covered.add(bucket(pair[0], pair[1])));
+                                assertTrue(pair[0] == pair[1] || covered.add(bucket(pair[1], pair[0])));
+                            } else {
+                                assertTrue(rowBlocks.add(pair[0]));
+                                assertTrue(columnBlocks.add(pair[1]));
+                                assertTrue(covered.add(bucket(pair[0], pair[1])));
+                            }
+                        }
+                    }
+                    assertEquals((long) blocks * blocks, covered.size());
+                    if (symmetric)
+                        assertEquals(blocks, scheduler.strata.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void epochVisitsEveryNonZeroOnceAndConcurrentTasksAreDisjoint() {
+        final CsrCooccurences crc = randomMatrix(ROWS, 0.2, 2);
+        for (boolean symmetric : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 2, 3, 4}) {
+                checkEpoch(crc, null, threads, symmetric);
+            }
+        }
+    }
+
+    @Test
+    public void activeRowsLimitTheEpochToTheirNonZeroes() {
+        final CsrCooccurences crc = randomMatrix(ROWS, 0.2, 3);
+        final int[] active = IntStream.range(0, ROWS).filter(i -> i % 3 != 1).toArray();
+        for (boolean symmetric : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 2, 3, 4}) {
+                checkEpoch(crc, active, threads, symmetric);
+            }
+        }
+    }
+
+    // Records (i, j, k) and the order of every step, then checks that each expected non-zero came exactly once
+    // and that buckets whose steps interleaved in time touched disjoint blocks.
+    private static void checkEpoch(CsrCooccurences crc, int[] active, int threads, boolean symmetric) {
+        final int[] rowPtr = crc.rowPtr();
+        final int[] columns = crc.columns();
+        final int[] entryRows = new int[crc.nonZeroes()];
+        for (int i = 0; i < crc.rows(); i++) {
+            for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++)
+                entryRows[k] = i;
+        }
+        final AtomicIntegerArray visits = new AtomicIntegerArray(crc.nonZeroes());
+        final long[] order = new long[crc.nonZeroes()];
+        final AtomicLong clock = new AtomicLong();
+        final int blocks;
+        try (TrainingScheduler scheduler = TrainingScheduler.create(TrainingScheduler.Type.STRATIFIED, crc, active,
+            threads, new FastRandom(11), false, symmetric)) {
+            blocks = ((TrainingScheduler.Stratified) scheduler).blocks;
+            scheduler.epoch((i, j, k) -> {
+                assertEquals(entryRows[k], i);
+                assertEquals(columns[k], j);
+                visits.incrementAndGet(k);
+                order[k] = clock.getAndIncrement();
+                return 0;
+            });
+        }
+
+        final boolean[] expected = new boolean[crc.rows()];
+        if (active == null)
+            java.util.Arrays.fill(expected, true);
+        else
+            for (int i : active)
+                expected[i] = true;
+        final Map<Long, long[]> spans = new HashMap<>();
+        for (int k = 0; k < crc.nonZeroes(); k++) {
+            assertEquals(expected[entryRows[k]] ? 1 : 0, visits.get(k));
+            if (visits.get(k) == 0)
+                continue;
+            int a = entryRows[k] % blocks;
+            int b = columns[k] % blocks;
+            if (symmetric && a > b) {
+                final int swap = a;
+                a = b;
+                b = swap;
+            }
+            final long[] span = spans.computeIfAbsent(bucket(a, b), key -> new long[]{Long.MAX_VALUE, Long.MIN_VALUE});
+            span[0] = Math.min(span[0], order[k]);
+            span[1] = Math.max(span[1], order[k]);
+        }
+        for (Map.Entry<Long, long[]> first : spans.entrySet()) {
+            for (Map.Entry<Long, long[]> second : spans.entrySet()) {
+                if (first.getKey() >= second.getKey())
+                    continue;
+                final long[] x = first.getValue();
+                final long[] y = second.getValue();
+                if (x[1] < y[0] || y[1] < x[0])
+                    continue;
+                final int a = (int) (first.getKey() >> 32), b = (int) (long) first.getKey();
+                final int c = (int) (second.getKey() >> 32), d = (int) (long) second.getKey();
+                if (symmetric) {
+                    assertFalse("blocks of " + a + "-" + b + " and " + c + "-" + d + " overlap",
+                        a == c || a == d || b == c || b == d);
+                } else {
+                    assertFalse("rows of " + a + "-" + b + " and " + c + "-" + d + " overlap", a == c);
+                    assertFalse("columns of " + a + "-" + b + " and " + c + "-" + d + " overlap", b == d);
+                }
+            }
+        }
+        assertArrayEquals(new int[0], IntStream.range(0, crc.nonZeroes())
+            .filter(k -> visits.get(k) > 1).toArray());
+    }
+
+    private static long bucket(int a, int b) {
+        return ((long) a << 32) | b;
+    }
+}
@@ -0,0 +1,115 @@
+package com.expleague.ml.embedding.neighbours;
+
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.exceptions.LoadingModelException;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HnswIndexTest {
+    private static final int WORDS = 3000;
+    private static final int DIM = 32;
+    private static final int QUERIES = 200;
+    private static final int TOP = 10;
+    private static final TIntSet NONE = new TIntHashSet();
+
+    // Random unit vectors, count rows of dim coordinates.
+    static double[] unitVectors(int count, int dim, long seed) {
+        final FastRandom rng = new FastRandom(seed);
+        final double[] vectors = new double[count * dim];
+        for (int i = 0; i < count; i++) {
+            double norm = 0;
+            for (int j = 0; j < dim; j++) {
+                final double x = rng.nextGaussian();
+                vectors[i * dim + j] = x;
+                norm += x * x;
+            }
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < dim; j++)
+                vectors[i * dim + j] /= norm;
+        }
+        return vectors;
+    }
+
+    private static HnswIndex build(VectorStore vectors) {
+        return HnswIndex.build(vectors, new HnswIndex.Parameters().setThreads(1));
+    }
+
+    // Default parameters give about 0.99 on these vectors.
+    @Test
+    public void recallAgainstExactSearch() {
+        final VectorStore vectors = new ArrayVectorStore(unitVectors(WORDS, DIM, 1), DIM);
+        final HnswIndex index = build(vectors);
+        final ExactIndex exact = new ExactIndex(vectors);
+        final double[] queries = unitVectors(QUERIES, DIM, 2);
+        final int[] exactIds = new int[TOP];
+        final int[] ids = new int[TOP];
+        final double[] scores = new double[TOP];
+        int found = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            final double[] query = java.util.Arrays.copyOfRange(queries, q * DIM, (q + 1) * DIM);
+            assertEquals(TOP, exact.search(query, TOP, NONE, exactIds, scores));
+            assertEquals(TOP, index.search(query, TOP, NONE, ids, scores));
+            final TIntSet truth = new TIntHashSet(exactIds);
+            for (int id : ids) {
+                if (truth.contains(id))
+                    found++;
+            }
+        }
+        final double recall = found / (double) (QUERIES * TOP);
+        assertTrue("recall@10 is " + recall, recall >= 0.95);
+    }
+
+    @Test
+    public void savedIndexAnswersTheSame() throws IOException {
+        final VectorStore vectors = new ArrayVectorStore(unitVectors(WORDS, DIM, 3), DIM);
+        final HnswIndex index = build(vectors);
+        final Path path = Files.createTempFile("hnsw", ".bin");
+        try {
+            index.save(path);
+            final HnswIndex loaded = HnswIndex.load(path, vectors);
+            assertEquals(index.getEfSearch(), loaded.getEfSearch());
+            final double[] queries = unitVectors(QUERIES, DIM, 4);
+            final int[] ids = new int[TOP];
+            final int[] loadedIds = new int[TOP];
+            final double[] scores = new double[TOP];
+            final double[] loadedScores = new double[TOP];
+            for (int q = 0; q < QUERIES; q++) {
+                final double[] query = java.util.Arrays.copyOfRange(queries, q * DIM, (q + 1) * DIM);
+                assertEquals(index.search(query, TOP, NONE, ids, scores), loaded.search(query, TOP, NONE, loadedIds, loadedScores));
+                assertArrayEquals(ids, loadedIds);
+                assertArrayEquals(scores, loadedScores, 0);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = LoadingModelException.class)
+    public void loadRejectsOtherNumberOfVectors() throws IOException {
+        checkLoadOver(new ArrayVectorStore(unitVectors(WORDS - 1, DIM, 6), DIM));
+    }
+
+    @Test(expected = LoadingModelException.class)
+    public void loadRejectsOtherDimension() throws IOException {
+        checkLoadOver(new ArrayVectorStore(unitVectors(WORDS, DIM + 1, 6), DIM + 1));
+    }
+
+    private static void checkLoadOver(VectorStore other) throws IOException {
+        final Path path = Files.createTempFile("hnsw", ".bin");
+        try {
+            build(new ArrayVectorStore(unitVectors(WORDS, DIM, 5), DIM)).save(path);
+            HnswIndex.load(path, other);
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.random.FastRandom;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CooccurencesBuilderTest {
+    private static final int WORDS = 200;
+    // more than one batch of lines of the sharded build
+    private static final int LINES = 25000;
+
+    private final Vocabulary vocabulary;
+    private final String text;
+
+    public CooccurencesBuilderTest() {
+        final List<String> words = new ArrayList<>();
+        for (int w = 0; w < WORDS; w++)
+            words.add("w" + w);
+        vocabulary = new Vocabulary(words);
+        // skewed frequencies, empty lines and words that aren't in the vocabulary
+        final FastRandom rng = new FastRandom(3);
+        final StringBuilder text = new StringBuilder();
+        for (int l = 0; l < LINES; l++) {
+            final int length = rng.nextInt(10) == 0 ? 0 : 1 + rng.nextInt(30);
+            for (int t = 0; t < length; t++) {
+                final int word = rng.nextInt(20) == 0 ? WORDS + rng.nextInt(100) : (int) (WORDS * Math.pow(rng.nextDouble(), 3));
+                text.append(t > 0 ? " " : "").append('w').append(word);
+            }
+            text.append('\n');
+        }
+        this.text = text.toString();
+    }
+
+    private CooccurencesBuilder builder(int threads) {
+        return new CooccurencesBuilder()
+            .setVocabulary(vocabulary)
+            .setLeftWindow(5)
+            .setRightWindow(3)
+            .setThreads(threads);
+    }
+
+    @Test
+    public void shardedReaderBuildIsBitIdentical() {
+        final CsrCooccurences single = builder(1).buildCsr(new BufferedReader(new StringReader(text)));
+        final CsrCooccurences sharded = builder(3).buildCsr(new BufferedReader(new StringReader(text)));
+        assertSame(single, sharded);
+    }
+
+    @Test
+    public void shardedStreamBuildIsBitIdentical() {
+        final TIntArrayList stream = new TIntArrayList();
+        final TIntArrayList lineEnds = new TIntArrayList();
+        for (String line : text.split("\n", -1)) {
+            if (line.isEmpty() && lineEnds.size() == LINES)
+                break;
+            for (String word : line.split(" ")) {
+                final int id = vocabulary.wordToIndex(word);
+                if (id != Vocabulary.NO_ENTRY_VALUE)
+                    stream.add(id);
+            }
+            lineEnds.add(stream.size());
+        }
+        assertEquals(LINES, lineEnds.size());
+        final CsrCooccurences single = builder(1).buildCsr(stream, lineEnds);
+        final CsrCooccurences sharded = builder(3).buildCsr(stream, lineEnds);
+        assertSame(single, sharded);
+        // and the same as reading the text
+        assertSame(builder(1).buildCsr(new BufferedReader(new StringReader(text))), single);
+    }
+
+    private static void assertSame(CsrCooccurences expected, CsrCooccurences actual) {
+        assertEquals(expected.rows(), actual.rows());
+        assertArrayEquals(expected.rowPtr(), actual.rowPtr());
+        assertArrayEquals(expected.columns(), actual.columns());
+        assertArrayEquals(expected.values(), actual.values(), 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.expleague.ml.embedding.text_utils;
+
+import com.expleague.commons.math.vectors.Mx;
+import com.expleague.commons.math.vectors.VecTools;
+import com.expleague.commons.math.vectors.impl.mx.SparseMx;
+import com.expleague.commons.random.FastRandom;
+import com.expleague.ml.embedding.exceptions.CooccurencesBuildingException;
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CsrCooccurencesTest {
+    private static final int ROWS = 60;
+
+    // Whole values keep float sums exact; every fifth row stays empty.
+    private static Mx randomMx(int rows, double density, long seed) {
+        final FastRandom rng = new FastRandom(seed);
+        final Mx mx = new SparseMx(rows, rows);
+        for (int i = 0; i < rows; i++) {
+            if (rng.nextInt(5) == 0)
+                continue;
+            for (int j = 0; j < rows; j++) {
+                if (rng.nextDouble() < density)
+                    mx.set(i, j, 1 + rng.nextInt(100));
+            }
+        }
+        return mx;
+    }
+
+    @Test
+    public void plusMatchesSparseMxSum() {
+        for (double density : new double[]{0.02, 0.2, 0.7}) {
+            final Mx a = randomMx(ROWS, density, 1);
+            final Mx b = randomMx(ROWS, density / 2, 2);
+            final CsrCooccurences expected = CsrCooccurences.fromMx(VecTools.append(new SparseMx(ROWS, ROWS), a, b));
+            final CsrCooccurences sum = CsrCooccurences.fromMx(a).plus(CsrCooccurences.fromMx(b));
+            assertEquals(expected.rows(), sum.rows());
+            assertArrayEquals(expected.rowPtr(), sum.rowPtr());
+            assertArrayEquals(expected.columns(), sum.columns());
+            assertArrayEquals(expected.values(), sum.values(), 0);
+        }
+    }
+
+    @Test
+    public void plusOfEmptyMatrixIsACopy() {
+        final CsrCooccurences crc = CsrCooccurences.fromMx(randomMx(ROWS, 0.2, 3));
+        final CsrCooccurences empty = CsrCooccurences.fromMx(new SparseMx(ROWS, ROWS));
+        for (CsrCooccurences sum : new CsrCooccurences[]{crc.plus(empty), empty.plus(crc)}) {
+            assertArrayEquals(crc.rowPtr(), sum.rowPtr());
+            assertArrayEquals(crc.columns(), sum.columns());
+            assertArrayEquals(crc.values(), sum.values(), 0);
+        }
+    }
+
+    @Test
+    public void nonEmptyRowsAreAscendingRowsWithNonZeroes() {
+        final Mx mx = randomMx(ROWS, 0.1, 4);
+        final CsrCooccurences crc = CsrCooccurences.fromMx(mx);
+        final int[] expected = IntStream.range(0, ROWS).filter(i -> VecTools.l1(mx.row(i)) > 0).toArray();
+        assertArrayEquals(expected, crc.nonEmptyRows());
+        assertArrayEquals(new int[0], CsrCooccurences.fromMx(new SparseMx(ROWS, ROWS)).nonEmptyRows());
+    }
+
+    @Test(expected = CooccurencesBuildingException.class)
+    public void plusRejectsOtherVocabularySize() {
+        CsrCooccurences.fromMx(new SparseMx(ROWS, ROWS)).plus(CsrCooccurences.fromMx(new SparseMx(ROWS + 1, ROWS + 1)));
+    }
+}
@@ -0,0 +1,35 @@
+package com.expleague.ml.embedding.text_utils;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class VocabularyTest {
+
+    @Test
+    public void addCountsKeepsIdsAndSkipsUnknownWords() throws IOException {
+        final Vocabulary vocabulary = new Vocabulary(Arrays.asList("the", "hobbit", "ring"), new int[]{10, 5, 3});
+        final Vocabulary updated = vocabulary.addCounts(
+            new BufferedReader(new StringReader("The hobbit took the ring\nthe dragon\n\nring ring")), Tokenizer.Type.FAST);
+        assertEquals(vocabulary.getEntries(), updated.getEntries());
+        assertEquals(13, updated.count(updated.wordToIndex("the")));
+        assertEquals(6, updated.count(updated.wordToIndex("hobbit")));
+        assertEquals(6, updated.count(updated.wordToIndex("ring")));
+        assertEquals(Vocabulary.NO_ENTRY_VALUE, updated.wordToIndex("dragon"));
+        // the original is left as it was
+        assertEquals(10, vocabulary.count(0));
+    }
+
+    @Test
+    public void addCountsOfEmptyTextChangesNothing() throws IOException {
+        final Vocabulary vocabulary = new Vocabulary(Arrays.asList("a", "b"), new int[]{2, 1});
+        final Vocabulary updated = vocabulary.addCounts(new BufferedReader(new StringReader("")), Tokenizer.Type.FAST);
+        assertEquals(2, updated.count(0));
+        assertEquals(1, updated.count(1));
+    }
+}